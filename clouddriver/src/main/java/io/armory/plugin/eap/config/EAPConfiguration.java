@@ -16,106 +16,180 @@
 
 package io.armory.plugin.eap.config;
 
+import com.netflix.spectator.api.Registry;
 import com.netflix.spinnaker.clouddriver.aws.security.config.AccountsConfiguration;
 import com.netflix.spinnaker.clouddriver.cloudfoundry.config.CloudFoundryConfigurationProperties;
 import com.netflix.spinnaker.clouddriver.docker.registry.config.DockerRegistryConfigurationProperties;
 import com.netflix.spinnaker.clouddriver.ecs.security.ECSCredentialsConfig;
 import com.netflix.spinnaker.clouddriver.kubernetes.config.KubernetesAccountProperties;
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
 import com.netflix.spinnaker.credentials.definition.CredentialsDefinitionSource;
 import com.netflix.spinnaker.kork.plugins.api.spring.ExposeToApp;
 import com.netflix.spinnaker.kork.secrets.SecretManager;
 import io.armory.plugin.eap.EAPConfigurationProperties;
+import io.armory.plugin.eap.RevisionTracker;
+import io.armory.plugin.eap.loaders.CredentialsParser;
 import io.armory.plugin.eap.loaders.DirectoryCredentialsLoader;
+import io.armory.plugin.eap.loaders.HttpTransport;
+import io.armory.plugin.eap.loaders.SharedCredentialsLoader;
+import io.armory.plugin.eap.loaders.SharedDirectoryLoader;
+import io.armory.plugin.eap.loaders.SharedMultiURLLoader;
+import io.armory.plugin.eap.loaders.SharedURLLoader;
+import io.armory.plugin.eap.loaders.SnapshotCredentialsLoader;
 import io.armory.plugin.eap.loaders.URLCredentialsLoader;
+import io.armory.plugin.eap.pollers.GitPoller;
+import io.armory.plugin.eap.pollers.GitPollerConfigurationProperties;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 @Configuration
 @EnableConfigurationProperties(EAPConfigurationProperties.class)
 public class EAPConfiguration {
 
+    private static final Set<Class<? extends CredentialsDefinition>> ACCOUNT_TYPES = Set.of(
+            KubernetesAccountProperties.ManagedAccount.class,
+            CloudFoundryConfigurationProperties.ManagedAccount.class,
+            AccountsConfiguration.Account.class,
+            ECSCredentialsConfig.Account.class,
+            DockerRegistryConfigurationProperties.ManagedAccount.class);
+
+    @Autowired(required = false)
+    private GitPollerConfigurationProperties gitPollerConfig;
+
+    @Autowired(required = false)
+    private Registry registry;
+
+    @Bean
+    public RevisionTracker revisionTracker() {
+        return new RevisionTracker();
+    }
+
+    @Bean
+    public CredentialsParser credentialsParser(EAPConfigurationProperties configProperties,
+                                               SecretManager secretManager) {
+        CredentialsParser parser = CredentialsParser.forSecretManager(secretManager, configProperties.getSecretCache(),
+                configProperties.getParserLimits());
+        if (registry != null) {
+            parser.getSecretDecrypter().registerMetrics(registry);
+        }
+        return parser;
+    }
+
+    @Bean
+    public SharedCredentialsLoader sharedCredentialsLoader(EAPConfigurationProperties configProperties,
+                                                           SecretManager secretManager) {
+        CredentialsParser parser = credentialsParser(configProperties, secretManager);
+        if (configProperties.getSnapshotFile() == null) {
+            return sourceLoader(configProperties, parser, configProperties.getLoadReuseWindowMs());
+        }
+        // loads are shared by the snapshot loader, the source doesn't need to reuse them as well
+        return new SnapshotCredentialsLoader(sourceLoader(configProperties, parser, 0),
+                configProperties.getSnapshotFile(), origin(configProperties), parser, ACCOUNT_TYPES,
+                configProperties.getLoadReuseWindowMs());
+    }
+
+    private SharedCredentialsLoader sourceLoader(EAPConfigurationProperties configProperties, CredentialsParser parser,
+                                                 long reuseWindowMs) {
+        if (configProperties.getDir() != null) {
+            EAPConfigurationProperties.ConfigFilePrefix prefix = configProperties.getFilePrefix();
+            // the embedded git poller publishes each commit behind a link, the rest of the directory is its own
+            Path dir = gitPollerConfig != null && gitPollerConfig.isEnabled() ? GitPoller.checkoutLink(configProperties.getDir()) :
+                    configProperties.getDir();
+            return new SharedDirectoryLoader(dir, parser, Map.of(
+                    KubernetesAccountProperties.ManagedAccount.class, filePrefixes(prefix.getDefault(), prefix.getKubernetes()),
+                    CloudFoundryConfigurationProperties.ManagedAccount.class, filePrefixes(prefix.getDefault(), prefix.getCloudfoundry()),
+                    AccountsConfiguration.Account.class, filePrefixes(prefix.getDefault(), prefix.getAws()),
+                    ECSCredentialsConfig.Account.class, filePrefixes(prefix.getDefault(), prefix.getEcs()),
+                    DockerRegistryConfigurationProperties.ManagedAccount.class, filePrefixes(prefix.getDefault(), prefix.getDockerRegistry())),
+                    configProperties.getDirScan(), reuseWindowMs, revisionTracker());
+        }
+        HttpTransport transport = new HttpTransport(configProperties.getHttp(),
+                configProperties.getParserLimits().getMaxFileBytes());
+        if (configProperties.getUrls().isEmpty()) {
+            return new SharedURLLoader(configProperties.getUrl(), configProperties.getUrlMirrors(),
+                    configProperties.getUrlContentFormat(), parser, transport, ACCOUNT_TYPES, reuseWindowMs);
+        }
+        List<SharedURLLoader> endpoints = new ArrayList<>();
+        if (configProperties.getUrl() != null) {
+            endpoints.add(new SharedURLLoader(configProperties.getUrl(), configProperties.getUrlMirrors(),
+                    configProperties.getUrlContentFormat(), parser, transport, ACCOUNT_TYPES, 0));
+        }
+        configProperties.getUrls().forEach(source -> endpoints.add(new SharedURLLoader(source.getUrl(),
+                source.getMirrors(), source.getContentFormat(), parser, transport, ACCOUNT_TYPES, 0)));
+        return new SharedMultiURLLoader(endpoints, ACCOUNT_TYPES, configProperties.getUrlFetchThreads(),
+                configProperties.getUrlLoadTimeoutMs(), reuseWindowMs);
+    }
+
+    /**
+     * Identifies the configured source, so that a snapshot of another one isn't served.
+     */
+    private static String origin(EAPConfigurationProperties configProperties) {
+        if (configProperties.getDir() != null) {
+            return configProperties.getDir().toAbsolutePath().toString();
+        }
+        List<String> urls = new ArrayList<>();
+        if (configProperties.getUrl() != null) {
+            urls.add(configProperties.getUrl().toString());
+        }
+        configProperties.getUrls().forEach(source -> urls.add(source.getUrl().toString()));
+        return String.join(",", urls);
+    }
+
     @Bean
     @ExposeToApp
     public CredentialsDefinitionSource<KubernetesAccountProperties.ManagedAccount>
     kubernetesCredentialSource(EAPConfigurationProperties configProperties, SecretManager secretManager) {
-        if (configProperties.getDir() != null) {
-            return new DirectoryCredentialsLoader<>(
-                    configProperties.getDir(),
-                    KubernetesAccountProperties.ManagedAccount.class,
-                    secretManager,
-                    configProperties.getFilePrefix().getDefault(),
-                    configProperties.getFilePrefix().getKubernetes());
-        } else {
-            return new URLCredentialsLoader<>(configProperties.getUrl(), configProperties.getUrlContentFormat(),
-                    KubernetesAccountProperties.ManagedAccount.class, secretManager);
-        }
+        return credentialsSource(configProperties, secretManager, KubernetesAccountProperties.ManagedAccount.class);
     }
 
     @Bean
     @ExposeToApp
     public CredentialsDefinitionSource<CloudFoundryConfigurationProperties.ManagedAccount>
     cloudFoundryCredentialSource(EAPConfigurationProperties configProperties, SecretManager secretManager) {
-        if (configProperties.getDir() != null) {
-            return new DirectoryCredentialsLoader<>(
-                    configProperties.getDir(),
-                    CloudFoundryConfigurationProperties.ManagedAccount.class,
-                    secretManager,
-                    configProperties.getFilePrefix().getDefault(),
-                    configProperties.getFilePrefix().getCloudfoundry());
-        } else {
-            return new URLCredentialsLoader<>(configProperties.getUrl(), configProperties.getUrlContentFormat(),
-                    CloudFoundryConfigurationProperties.ManagedAccount.class, secretManager);
-        }
+        return credentialsSource(configProperties, secretManager, CloudFoundryConfigurationProperties.ManagedAccount.class);
     }
 
     @Bean
     @ExposeToApp
     public CredentialsDefinitionSource<AccountsConfiguration.Account>
     amazonCredentialsSource(EAPConfigurationProperties configProperties, SecretManager secretManager) {
-        if (configProperties.getDir() != null) {
-            return new DirectoryCredentialsLoader<>(
-                    configProperties.getDir(),
-                    AccountsConfiguration.Account.class,
-                    secretManager,
-                    configProperties.getFilePrefix().getDefault(),
-                    configProperties.getFilePrefix().getAws());
-        }
-        return new URLCredentialsLoader<>(configProperties.getUrl(), configProperties.getUrlContentFormat(),
-                AccountsConfiguration.Account.class, secretManager);
-
+        return credentialsSource(configProperties, secretManager, AccountsConfiguration.Account.class);
     }
 
     @Bean
     @ExposeToApp
     public CredentialsDefinitionSource<ECSCredentialsConfig.Account>
     ecsCredentialsSource(EAPConfigurationProperties configProperties, SecretManager secretManager) {
-        if (configProperties.getDir() != null) {
-            return new DirectoryCredentialsLoader<>(
-                    configProperties.getDir(),
-                    ECSCredentialsConfig.Account.class,
-                    secretManager,
-                    configProperties.getFilePrefix().getDefault(),
-                    configProperties.getFilePrefix().getEcs());
-        } else {
-            return new URLCredentialsLoader<>(configProperties.getUrl(), configProperties.getUrlContentFormat(),
-                    ECSCredentialsConfig.Account.class, secretManager);
-        }
+        return credentialsSource(configProperties, secretManager, ECSCredentialsConfig.Account.class);
     }
 
     @Bean
     @ExposeToApp
     public CredentialsDefinitionSource<DockerRegistryConfigurationProperties.ManagedAccount>
     dockerRegistryCredentialsSource(EAPConfigurationProperties configProperties, SecretManager secretManager) {
+        return credentialsSource(configProperties, secretManager, DockerRegistryConfigurationProperties.ManagedAccount.class);
+    }
+
+    private <T extends CredentialsDefinition> CredentialsDefinitionSource<T> credentialsSource(
+            EAPConfigurationProperties configProperties, SecretManager secretManager, Class<T> classType) {
+        SharedCredentialsLoader loader = sharedCredentialsLoader(configProperties, secretManager);
         if (configProperties.getDir() != null) {
-            return new DirectoryCredentialsLoader<>(
-                    configProperties.getDir(),
-                    DockerRegistryConfigurationProperties.ManagedAccount.class,
-                    secretManager,
-                    configProperties.getFilePrefix().getDefault(),
-                    configProperties.getFilePrefix().getDockerRegistry());
+            return new DirectoryCredentialsLoader<>(loader, classType);
         }
-        return new URLCredentialsLoader<>(configProperties.getUrl(), configProperties.getUrlContentFormat(),
-                DockerRegistryConfigurationProperties.ManagedAccount.class, secretManager);
+        return new URLCredentialsLoader<>(loader, classType);
+    }
+
+    private static Set<String> filePrefixes(String... prefixes) {
+        return Arrays.stream(prefixes).collect(Collectors.toSet());
     }
 }
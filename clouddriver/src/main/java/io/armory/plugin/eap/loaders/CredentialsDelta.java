@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Accounts added, changed or removed since a previous load, grouped by provider type. Accounts are matched by name.
+ */
+public class CredentialsDelta {
+
+    private final LoadedCredentials upserted = new LoadedCredentials();
+    private final Map<Class<? extends CredentialsDefinition>, Set<String>> removed = new HashMap<>();
+
+    void upsert(Class<? extends CredentialsDefinition> type, List<? extends CredentialsDefinition> credentials) {
+        upserted.add(type, credentials);
+    }
+
+    LoadedCredentials getUpserted() {
+        return upserted;
+    }
+
+    void remove(Class<? extends CredentialsDefinition> type, String name) {
+        removed.computeIfAbsent(type, t -> new HashSet<>()).add(name);
+    }
+
+    public int size() {
+        return upserted.size() + removed.values().stream().mapToInt(Set::size).sum();
+    }
+
+    /**
+     * Returns a copy of the given accounts with this delta applied. Changed accounts keep their position, added
+     * ones come last.
+     */
+    public LoadedCredentials applyTo(LoadedCredentials base, Set<Class<? extends CredentialsDefinition>> types) {
+        LoadedCredentials result = new LoadedCredentials();
+        for (Class<? extends CredentialsDefinition> type : types) {
+            Set<String> removedNames = removed.getOrDefault(type, Set.of());
+            Map<String, CredentialsDefinition> changed = new LinkedHashMap<>();
+            upserted.get(type).forEach(account -> changed.put(account.getName(), account));
+            List<CredentialsDefinition> accounts = new ArrayList<>();
+            for (CredentialsDefinition account : base.get(type)) {
+                if (removedNames.contains(account.getName())) {
+                    continue;
+                }
+                CredentialsDefinition replacement = changed.remove(account.getName());
+                if (replacement != null) {
+                    accounts.add(replacement);
+                    result.addReferences(upserted, replacement);
+                } else {
+                    accounts.add(account);
+                    result.addReferences(base, account);
+                }
+            }
+            changed.values().forEach(account -> result.addReferences(upserted, account));
+            accounts.addAll(changed.values());
+            result.add(type, accounts);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StringDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdScalarSerializer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.collect.ImmutableMap;
+import com.netflix.spinnaker.clouddriver.aws.security.config.AccountsConfiguration;
+import com.netflix.spinnaker.clouddriver.cloudfoundry.config.CloudFoundryConfigurationProperties;
+import com.netflix.spinnaker.clouddriver.docker.registry.config.DockerRegistryConfigurationProperties;
+import com.netflix.spinnaker.clouddriver.ecs.security.ECSCredentialsConfig;
+import com.netflix.spinnaker.clouddriver.kubernetes.config.KubernetesAccountProperties;
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
+import com.netflix.spinnaker.kork.secrets.SecretManager;
+import io.armory.plugin.eap.EAPConfigurationProperties;
+import io.armory.plugin.eap.EAPException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses an accounts document once and binds its content to every requested provider type.
+ * <p>
+ * Parsers are thread safe and shared: the {@code credentialsParser} bean is used by every loader, so they reuse the
+ * same configured mapper, its deserializer caches and the readers built for each provider type.
+ * <p>
+ * Documents are read within the configured {@link EAPConfigurationProperties.ParserLimits}, checked while
+ * streaming, so that a malicious or broken document is rejected before it can exhaust memory or stall a reload.
+ * <p>
+ * Values resolved from secret or {@code ${VAR}} references are recorded against the account they are bound to in
+ * its {@link LoadedCredentials}, and written back as those references by {@link #writeSnapshot}.
+ */
+@Slf4j
+public class CredentialsParser {
+
+    static final Map<Class<? extends CredentialsDefinition>, String> PROVIDER_NAME_BY_CLASS = ImmutableMap.of(
+            KubernetesAccountProperties.ManagedAccount.class, "kubernetes",
+            CloudFoundryConfigurationProperties.ManagedAccount.class, "cloudfoundry",
+            AccountsConfiguration.Account.class, "aws",
+            ECSCredentialsConfig.Account.class, "ecs",
+            DockerRegistryConfigurationProperties.ManagedAccount.class, "dockerRegistry"
+    );
+    private static final String ACCOUNTS_KEY = "accounts";
+    private static final String NAME_KEY = "name";
+    private static final String REMOVED_KEY = "removed";
+
+    private static final YAMLFactory YAML_FACTORY = new YAMLFactory();
+    private static final SmileFactory SMILE_FACTORY = new SmileFactory();
+    private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+
+    private final SecretDecrypter secretDecrypter;
+    private final EAPConfigurationProperties.ParserLimits limits;
+    private ObjectMapper mapper;
+    private final Map<Class<? extends CredentialsDefinition>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    private CredentialsParser(SecretDecrypter secretDecrypter, EAPConfigurationProperties.ParserLimits limits) {
+        this.secretDecrypter = secretDecrypter;
+        this.limits = limits;
+        initMapper();
+    }
+
+    public static CredentialsParser forSecretManager(SecretManager secretManager) {
+        return forSecretManager(secretManager, new EAPConfigurationProperties.SecretCache());
+    }
+
+    public static CredentialsParser forSecretManager(SecretManager secretManager,
+                                                     EAPConfigurationProperties.SecretCache secretCache) {
+        return forSecretManager(secretManager, secretCache, new EAPConfigurationProperties.ParserLimits());
+    }
+
+    /**
+     * Creates a parser with its own mapper and secret cache, loaders sharing them must share the parser.
+     */
+    public static CredentialsParser forSecretManager(SecretManager secretManager,
+                                                     EAPConfigurationProperties.SecretCache secretCache,
+                                                     EAPConfigurationProperties.ParserLimits limits) {
+        return new CredentialsParser(new SecretDecrypter(secretManager, secretCache), limits);
+    }
+
+    public SecretDecrypter getSecretDecrypter() {
+        return secretDecrypter;
+    }
+
+    public EAPConfigurationProperties.ParserLimits getLimits() {
+        return limits;
+    }
+
+    static String providerName(Class<? extends CredentialsDefinition> classType) {
+        String providerName = PROVIDER_NAME_BY_CLASS.get(classType);
+        if (providerName == null) {
+            throw new EAPException("Unknown provider name for class " + classType);
+        }
+        return providerName;
+    }
+
+    private void initMapper() {
+        SimpleModule module = new SimpleModule();
+        module.addDeserializer(String.class, new StringDeserializer() {
+            @Override
+            public String deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+                String text = p.getText();
+                String resolved = resolve(text, (EnvInterpolator) ctxt.getAttribute(EnvInterpolator.class));
+                LoadedCredentials target = (LoadedCredentials) ctxt.getAttribute(LoadedCredentials.class);
+                // resolve() returns the text itself when it holds no reference
+                if (target != null && resolved != null && resolved != text) {
+                    target.addReference(resolved, text);
+                }
+                return resolved;
+            }
+        });
+        module.addSerializer(String.class, new StdScalarSerializer<String>(String.class) {
+            @Override
+            public void serialize(String value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+                @SuppressWarnings("unchecked")
+                Map<String, String> references = (Map<String, String>) provider.getAttribute(LoadedCredentials.class);
+                String reference = references != null ? references.get(value) : null;
+                gen.writeString(reference != null ? reference : value);
+            }
+        });
+        this.mapper = new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                .configure(DeserializationFeature.FAIL_ON_NULL_CREATOR_PROPERTIES, false)
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .registerModule(module);
+    }
+
+    private String resolve(String text, EnvInterpolator env) {
+        String value = secretDecrypter.decrypt(text);
+        String interpolated = (env != null ? env : EnvInterpolator.fromSystemEnv()).interpolate(value);
+        if (interpolated == value) {
+            return value;
+        }
+        log.debug("Property value {} was interpolated with env vars", value);
+        return secretDecrypter.decrypt(interpolated);
+    }
+
+    /**
+     * The reader of a provider type for one document, recording the references it resolves in {@code target}.
+     */
+    private ObjectReader readerFor(Class<? extends CredentialsDefinition> type, EnvInterpolator env,
+                                   LoadedCredentials target) {
+        return readers.computeIfAbsent(type, mapper::readerFor)
+                .withAttribute(EnvInterpolator.class, env)
+                .withAttribute(LoadedCredentials.class, target);
+    }
+
+    /**
+     * Reads the document once and binds it to each of the given provider types. A list or single account
+     * document is bound to all of them, a document keyed by provider name only yields each type its own entry.
+     */
+    public LoadedCredentials parse(InputStream is, EAPConfigurationProperties.FileFormat format,
+                                   Set<Class<? extends CredentialsDefinition>> types) throws IOException {
+        return parse(is, format, types, EnvInterpolator.fromSystemEnv());
+    }
+
+    /**
+     * Same as {@link #parse(InputStream, EAPConfigurationProperties.FileFormat, Set)}, resolving {@code ${VAR}}
+     * references against the given environment so that all the files of a load see the same snapshot.
+     */
+    public LoadedCredentials parse(InputStream is, EAPConfigurationProperties.FileFormat format,
+                                   Set<Class<? extends CredentialsDefinition>> types, EnvInterpolator env)
+            throws IOException {
+        if (format == EAPConfigurationProperties.FileFormat.NDJSON) {
+            return readLines(is, types, env);
+        }
+        try (JsonParser parser = createParser(is, format, limits.getMaxFileBytes())) {
+            return read(parser, types, env);
+        }
+    }
+
+    /**
+     * Writes the accounts in the layout keyed by provider name, encoded as Smile. Values resolved from references
+     * are written as the references they were read from, so the accounts are resolved again when read back.
+     */
+    public void writeSnapshot(LoadedCredentials credentials, Set<Class<? extends CredentialsDefinition>> types,
+                              OutputStream os) throws IOException {
+        ObjectWriter writer = mapper.writer();
+        try (JsonGenerator generator = SMILE_FACTORY.createGenerator(os)) {
+            generator.writeStartObject();
+            for (Class<? extends CredentialsDefinition> type : types) {
+                generator.writeObjectFieldStart(providerName(type));
+                generator.writeArrayFieldStart(ACCOUNTS_KEY);
+                for (CredentialsDefinition account : credentials.get(type)) {
+                    writer.withAttribute(LoadedCredentials.class, credentials.referencesOf(account))
+                            .writeValue(generator, account);
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Reads accounts written by {@link #writeSnapshot}. As a snapshot holds the accounts of a whole source, it's
+     * limited to the size of a source rather than of a single file.
+     */
+    public LoadedCredentials parseSnapshot(InputStream is, Set<Class<? extends CredentialsDefinition>> types)
+            throws IOException {
+        try (JsonParser parser = createParser(is, EAPConfigurationProperties.FileFormat.SMILE,
+                limits.getMaxSourceBytes())) {
+            return read(parser, types, EnvInterpolator.fromSystemEnv());
+        }
+    }
+
+    /**
+     * Reads an incremental update of the accounts: a map keyed by provider name, where each provider lists the
+     * added or changed accounts under {@code accounts} and the names of the removed ones under {@code removed}.
+     * Incremental updates of NDJSON sources are a single JSON document, those of Smile and CBOR sources use the
+     * same binary format.
+     */
+    public CredentialsDelta parseDelta(InputStream is, EAPConfigurationProperties.FileFormat format,
+                                       Set<Class<? extends CredentialsDefinition>> types) throws IOException {
+        try (JsonParser parser = createParser(is, format, limits.getMaxFileBytes())) {
+            return readDelta(parser, types, EnvInterpolator.fromSystemEnv());
+        }
+    }
+
+    private JsonParser createParser(InputStream is, EAPConfigurationProperties.FileFormat format, long maxBytes)
+            throws IOException {
+        InputStream limited = new SizeLimitedInputStream(is, maxBytes);
+        JsonParser parser;
+        switch (format) {
+            case JSON:
+            case NDJSON:
+                parser = mapper.getFactory().createParser(limited);
+                break;
+            case YAML:
+                Reader reader = new BufferedReader(new InputStreamReader(limited, Charset.defaultCharset()));
+                parser = new YAMLAliasResolvingParser(YAML_FACTORY.createParser(reader), mapper,
+                        limits.getMaxAliases(), limits.getMaxAliasTokens());
+                break;
+            case SMILE:
+                parser = SMILE_FACTORY.createParser(limited);
+                break;
+            case CBOR:
+                parser = CBOR_FACTORY.createParser(limited);
+                break;
+            default:
+                throw new EAPException("Unknown format: " + format);
+        }
+        return new DepthLimitedParser(parser, limits.getMaxDepth());
+    }
+
+    /**
+     * Binds the documents while they are being read: accounts are bound one at a time as their tokens arrive, and
+     * only the top level fields of a single account document are buffered until the end of that document.
+     * <p>
+     * A stream can hold several documents, such as YAML documents separated by {@code ---}. Each one is bound
+     * before the next is read, so memory use is bounded by the largest document rather than the whole stream.
+     */
+    private LoadedCredentials read(JsonParser p, Set<Class<? extends CredentialsDefinition>> types, EnvInterpolator env)
+            throws IOException {
+        LoadedCredentials result = new LoadedCredentials();
+        Map<Class<? extends CredentialsDefinition>, Binding> bindings = new LinkedHashMap<>();
+        types.forEach(type -> bindings.put(type, new Binding(readerFor(type, env, result), result)));
+        JsonToken token;
+        while ((token = p.nextToken()) != null) {
+            if (token == JsonToken.START_ARRAY) {
+                readAccounts(p, bindings.values());
+            } else if (token == JsonToken.START_OBJECT) {
+                readObject(p, bindings);
+            } else if (token != JsonToken.VALUE_NULL) { // empty documents are skipped
+                throw new EAPException("Accounts document must be a list or a map, found " + token);
+            }
+        }
+        bindings.forEach((type, binding) -> result.add(type, binding.accounts));
+        return result;
+    }
+
+    private void readObject(JsonParser p, Map<Class<? extends CredentialsDefinition>, Binding> bindings)
+            throws IOException {
+        Map<String, Binding> bindingByProviderName = new HashMap<>();
+        bindings.forEach((type, binding) -> bindingByProviderName.put(providerName(type), binding));
+        Set<Binding> withProvider = new HashSet<>();
+        TokenBuffer otherFields = new TokenBuffer(mapper, false);
+        otherFields.writeStartObject();
+        boolean hasName = false;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            Binding binding = bindingByProviderName.get(field);
+            if (binding != null) {
+                readProvider(p, field, binding);
+                withProvider.add(binding);
+            } else if (PROVIDER_NAME_BY_CLASS.containsValue(field)) {
+                p.skipChildren();
+            } else {
+                otherFields.writeFieldName(field);
+                otherFields.copyCurrentStructure(p);
+                hasName |= NAME_KEY.equals(field);
+            }
+        }
+        otherFields.writeEndObject();
+        if (!hasName) { // no account for desired providers
+            return;
+        }
+        // single account defined in a file
+        for (Binding binding : bindings.values()) {
+            if (!withProvider.contains(binding)) {
+                binding.bind(otherFields.asParser(mapper));
+            }
+        }
+    }
+
+    private void readProvider(JsonParser p, String providerName, Binding binding) throws IOException {
+        boolean found = false;
+        if (p.currentToken() == JsonToken.START_OBJECT) {
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                p.nextToken();
+                if (ACCOUNTS_KEY.equals(field) && p.currentToken() == JsonToken.START_ARRAY) {
+                    readAccounts(p, List.of(binding));
+                    found = true;
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+        if (!found) {
+            throw new EAPException("Provider " + providerName + " doesn't have \"" + ACCOUNTS_KEY + "\" entry");
+        }
+    }
+
+    /**
+     * Binds one account per line to every requested provider type, so that memory use doesn't grow with the size
+     * of the document. Lines that can't be parsed or bound are reported and skipped, but a line going over a parser
+     * limit fails the whole file.
+     */
+    private LoadedCredentials readLines(InputStream is, Set<Class<? extends CredentialsDefinition>> types,
+                                        EnvInterpolator env) throws IOException {
+        LoadedCredentials result = new LoadedCredentials();
+        Map<Class<? extends CredentialsDefinition>, Binding> bindings = new LinkedHashMap<>();
+        types.forEach(type -> bindings.put(type, new Binding(readerFor(type, env, result), result)));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new SizeLimitedInputStream(is, limits.getMaxFileBytes()), StandardCharsets.UTF_8));
+        int lineNumber = 0;
+        int skipped = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                bindLine(line, bindings.values());
+            } catch (ParserLimitException e) {
+                throw e;
+            } catch (JsonProcessingException e) {
+                skipped++;
+                log.warn("Skipping line {} of NDJSON accounts: {}", lineNumber, e.getOriginalMessage());
+            }
+        }
+        if (skipped > 0) {
+            log.warn("Skipped {} malformed lines out of {} in NDJSON accounts", skipped, lineNumber);
+        }
+        bindings.forEach((type, binding) -> result.add(type, binding.accounts));
+        return result;
+    }
+
+    private void bindLine(String line, Collection<Binding> bindings) throws IOException {
+        TokenBuffer account = new TokenBuffer(mapper, false);
+        try (JsonParser p = new DepthLimitedParser(mapper.getFactory().createParser(line), limits.getMaxDepth())) {
+            JsonToken token = p.nextToken();
+            if (token != JsonToken.START_OBJECT) {
+                throw new JsonParseException(p, "Expected an account object, found " + token);
+            }
+            account.copyCurrentStructure(p);
+            if (p.nextToken() != null) {
+                throw new JsonParseException(p, "Unexpected content after the account object");
+            }
+        }
+        // all the provider types are bound before any is kept, so a line is either kept or skipped as a whole
+        Map<Binding, CredentialsDefinition> bound = new LinkedHashMap<>();
+        for (Binding binding : bindings) {
+            bound.put(binding, binding.read(account.asParser(mapper)));
+        }
+        bound.forEach((binding, credentials) -> {
+            if (credentials != null) {
+                binding.accounts.add(credentials);
+            }
+        });
+    }
+
+    private CredentialsDelta readDelta(JsonParser p, Set<Class<? extends CredentialsDefinition>> types,
+                                       EnvInterpolator env) throws IOException {
+        CredentialsDelta delta = new CredentialsDelta();
+        JsonToken token = p.nextToken();
+        if (token == null || token == JsonToken.VALUE_NULL) {
+            return delta;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new EAPException("Accounts delta must be a map of provider names, found " + token);
+        }
+        Map<String, Class<? extends CredentialsDefinition>> typeByProviderName = new HashMap<>();
+        types.forEach(type -> typeByProviderName.put(providerName(type), type));
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            Class<? extends CredentialsDefinition> type = typeByProviderName.get(p.getCurrentName());
+            if (p.nextToken() != JsonToken.START_OBJECT || type == null) {
+                p.skipChildren();
+                continue;
+            }
+            Binding binding = new Binding(readerFor(type, env, delta.getUpserted()), delta.getUpserted());
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                if (p.nextToken() != JsonToken.START_ARRAY) {
+                    p.skipChildren();
+                } else if (ACCOUNTS_KEY.equals(field)) {
+                    readAccounts(p, List.of(binding));
+                } else if (REMOVED_KEY.equals(field)) {
+                    while (p.nextToken() != JsonToken.END_ARRAY) {
+                        if (p.currentToken() == JsonToken.VALUE_STRING) {
+                            delta.remove(type, p.getText());
+                        } else {
+                            p.skipChildren();
+                        }
+                    }
+                } else {
+                    p.skipChildren();
+                }
+            }
+            delta.upsert(type, binding.accounts);
+        }
+        return delta;
+    }
+
+    /**
+     * Binds the elements of the array the parser is positioned on. An element is buffered only when it must be
+     * bound to more than one provider type.
+     */
+    private void readAccounts(JsonParser p, Collection<Binding> bindings) throws IOException {
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+            if (p.currentToken() == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            if (bindings.size() == 1) {
+                bindings.iterator().next().bind(p);
+                continue;
+            }
+            TokenBuffer account = new TokenBuffer(mapper, false);
+            account.copyCurrentStructure(p);
+            for (Binding binding : bindings) {
+                binding.bind(account.asParser(mapper));
+            }
+        }
+    }
+
+    /**
+     * The reader of a provider type for the document being read, and the accounts bound so far.
+     */
+    private static class Binding {
+        private final ObjectReader reader;
+        private final LoadedCredentials target;
+        private final List<CredentialsDefinition> accounts = new ArrayList<>();
+
+        Binding(ObjectReader reader, LoadedCredentials target) {
+            this.reader = reader;
+            this.target = target;
+        }
+
+        void bind(JsonParser p) throws IOException {
+            CredentialsDefinition account = read(p);
+            if (account != null) {
+                accounts.add(account);
+            }
+        }
+
+        /**
+         * Binds one account, recording the references it was resolved from against it.
+         */
+        CredentialsDefinition read(JsonParser p) throws IOException {
+            target.beginAccount();
+            CredentialsDefinition account = reader.readValue(p);
+            target.endAccount(account);
+            return account;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+
+import java.io.IOException;
+
+/**
+ * Fails on documents nesting maps and lists deeper than a maximum, before they are bound.
+ */
+class DepthLimitedParser extends JsonParserDelegate {
+
+    private final int maxDepth;
+    private int depth;
+
+    DepthLimitedParser(JsonParser delegate, int maxDepth) {
+        super(delegate);
+        this.maxDepth = maxDepth;
+    }
+
+    @Override
+    public JsonToken nextToken() throws IOException {
+        JsonToken token = delegate.nextToken();
+        if (token == null) {
+            return null;
+        }
+        if (token.isStructStart() && ++depth > maxDepth) {
+            throw new ParserLimitException(this, "Accounts document is nested deeper than the limit of " + maxDepth);
+        } else if (token.isStructEnd()) {
+            depth--;
+        }
+        return token;
+    }
+
+    @Override
+    public JsonToken nextValue() throws IOException {
+        JsonToken token = nextToken();
+        return token == JsonToken.FIELD_NAME ? nextToken() : token;
+    }
+
+    @Override
+    public JsonParser skipChildren() throws IOException {
+        JsonToken token = currentToken();
+        if (token == null || !token.isStructStart()) {
+            return this;
+        }
+        // skipped content is checked too, as unknown properties are skipped rather than bound
+        int open = 1;
+        while ((token = nextToken()) != null) {
+            if (token.isStructStart()) {
+                open++;
+            } else if (token.isStructEnd() && --open == 0) {
+                break;
+            }
+        }
+        return this;
+    }
+}
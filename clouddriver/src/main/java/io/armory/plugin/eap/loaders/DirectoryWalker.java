@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import io.armory.plugin.eap.EAPConfigurationProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Walks the accounts directory without descending into excluded subtrees such as {@code .git}.
+ * Include and exclude globs are matched against paths relative to the accounts directory.
+ */
+@Slf4j
+class DirectoryWalker {
+
+    private static final String GIT_DIR = ".git";
+
+    private final Path root;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final int maxDepth;
+    private final boolean skipGit;
+
+    interface DirectoryVisitor {
+        void visit(Path dir) throws IOException;
+    }
+
+    DirectoryWalker(Path root, EAPConfigurationProperties.DirScan scan) {
+        this.root = root;
+        this.includes = compile(scan.getInclude());
+        this.excludes = compile(scan.getExclude());
+        this.maxDepth = scan.getMaxDepth();
+        this.skipGit = scan.isSkipGit();
+    }
+
+    private static List<PathMatcher> compile(List<String> globs) {
+        return globs.stream()
+                .map(g -> FileSystems.getDefault().getPathMatcher("glob:" + g))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Whether a file is within the maximum depth and matches the include and exclude globs. Its parent
+     * directories are assumed to have been accepted already.
+     */
+    boolean accepts(Path file) {
+        Path relative = root.relativize(file);
+        if (relative.getNameCount() > maxDepth || matchesAny(excludes, relative)) {
+            return false;
+        }
+        return includes.isEmpty() || matchesAny(includes, relative);
+    }
+
+    /**
+     * Walks the tree below {@code start}, pruning excluded directories before their content is listed.
+     */
+    void walk(Path start, DirectoryVisitor onDirectory, Consumer<Path> onFile) throws IOException {
+        walk(start, onDirectory, onFile, root);
+    }
+
+    /**
+     * Walks the tree below {@code start} as it is in {@code resolvedRoot}, the accounts directory already resolved
+     * through symbolic links, so that a link swapped during the walk isn't followed again. Paths are still reported
+     * below the accounts directory.
+     */
+    void walk(Path start, DirectoryVisitor onDirectory, Consumer<Path> onFile, Path resolvedRoot) throws IOException {
+        int depth = start.equals(root) ? 0 : root.relativize(start).getNameCount();
+        if (depth > maxDepth) {
+            return;
+        }
+        Path resolvedStart = resolvedRoot.resolve(root.relativize(start));
+        Files.walkFileTree(resolvedStart, EnumSet.of(FileVisitOption.FOLLOW_LINKS), maxDepth - depth, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path resolvedDir, BasicFileAttributes attrs) throws IOException {
+                Path dir = root.resolve(resolvedRoot.relativize(resolvedDir));
+                if (!dir.equals(root) && isPruned(dir)) {
+                    log.debug("Skipping directory {}", dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                onDirectory.visit(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path resolvedFile, BasicFileAttributes attrs) {
+                Path file = root.resolve(resolvedRoot.relativize(resolvedFile));
+                // directories at the maximum depth are reported as files
+                if (attrs.isRegularFile() && accepts(file)) {
+                    onFile.accept(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warn("Unable to read {}", file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean isPruned(Path dir) {
+        if (skipGit && GIT_DIR.equals(dir.getFileName().toString())) {
+            return true;
+        }
+        return matchesAny(excludes, root.relativize(dir));
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, Path path) {
+        return matchers.stream().anyMatch(m -> m.matches(path));
+    }
+}
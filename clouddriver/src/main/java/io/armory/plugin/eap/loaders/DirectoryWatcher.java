@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches a directory tree for file system events and collects the paths that changed between polls.
+ */
+@Slf4j
+class DirectoryWatcher implements Closeable {
+
+    private final WatchService watchService;
+    private final DirectoryWalker walker;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+
+    DirectoryWatcher(Path root, DirectoryWalker walker) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.walker = walker;
+        try {
+            registerTree(root, new HashSet<>());
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the paths created, modified or deleted since the last poll, or null when events were lost and
+     * the whole tree must be scanned again.
+     */
+    Set<Path> pollChanges() throws IOException {
+        Set<Path> changed = new HashSet<>();
+        boolean overflow = false;
+        WatchKey key;
+        while ((key = watchService.poll()) != null) {
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    overflow = true;
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                    registerTree(path, changed);
+                } else {
+                    changed.add(path);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(key);
+            }
+        }
+        if (overflow) {
+            log.warn("File system events were lost, the accounts directory will be fully scanned");
+            return null;
+        }
+        return changed;
+    }
+
+    private void registerTree(Path root, Set<Path> files) throws IOException {
+        walker.walk(root, dir -> watchedDirs.put(dir.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE), dir), files::add);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
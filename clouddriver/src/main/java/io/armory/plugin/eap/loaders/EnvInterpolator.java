@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import java.util.Map;
+
+/**
+ * Replaces {@code ${VAR}} references in account values with environment variables in a single pass.
+ * <ul>
+ *   <li>{@code ${VAR:default}} falls back to {@code default} when {@code VAR} isn't set.</li>
+ *   <li>{@code $${VAR}} is an escaped reference and yields the literal text {@code ${VAR}}.</li>
+ *   <li>References to unset variables without a default are left as they are.</li>
+ * </ul>
+ * Values without any reference are returned as the same instance, without allocating.
+ */
+public class EnvInterpolator {
+
+    private static final String REFERENCE_START = "${";
+
+    private final Map<String, String> env;
+
+    public EnvInterpolator(Map<String, String> env) {
+        this.env = env;
+    }
+
+    public static EnvInterpolator fromSystemEnv() {
+        return new EnvInterpolator(System.getenv());
+    }
+
+    public String interpolate(String value) {
+        if (value == null) {
+            return null;
+        }
+        int start = value.indexOf(REFERENCE_START);
+        if (start < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length() + 32);
+        int copied = 0;
+        while (start >= 0) {
+            if (start > copied && value.charAt(start - 1) == '$') {
+                result.append(value, copied, start - 1).append(REFERENCE_START);
+                copied = start + REFERENCE_START.length();
+            } else {
+                int end = value.indexOf('}', start + REFERENCE_START.length());
+                if (end < 0) {
+                    break;
+                }
+                result.append(value, copied, start);
+                appendReference(result, value, start, end);
+                copied = end + 1;
+            }
+            start = value.indexOf(REFERENCE_START, copied);
+        }
+        return result.append(value, copied, value.length()).toString();
+    }
+
+    private void appendReference(StringBuilder result, String value, int start, int end) {
+        int nameStart = start + REFERENCE_START.length();
+        int separator = value.indexOf(':', nameStart);
+        int nameEnd = separator >= 0 && separator < end ? separator : end;
+        String resolved = env.get(value.substring(nameStart, nameEnd));
+        if (resolved != null) {
+            result.append(resolved);
+        } else if (nameEnd < end) {
+            result.append(value, nameEnd + 1, end);
+        } else {
+            result.append(value, start, end + 1);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import io.armory.plugin.eap.EAPConfigurationProperties;
+import lombok.Data;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Fetches account documents over HTTP with a single {@link HttpClient}, so connections are kept alive and reused
+ * (over HTTP/2 when the server supports it) between polls and between the URLs of a source.
+ * <p>
+ * Every request is bounded by the connect, read and total timeouts of the configuration, and asks for gzip or
+ * deflate compressed content. Bodies are streamed to the parser as they are received: reading one fails once the
+ * total timeout has elapsed, the exchange being aborted at that time, or once more than the maximum document size
+ * has been received.
+ * <p>
+ * Servers can also send incremental updates. A server supporting them returns a version token in the
+ * {@value #VERSION_HEADER} header, which is sent back on the next request. The server then answers with only the
+ * accounts changed since that version, flagged by a {@value #DELTA_HEADER}{@code : true} header, or with a full
+ * document when the version is unknown or too old. See {@link CredentialsParser#parseDelta} for the content of
+ * an incremental update.
+ */
+public class HttpTransport {
+
+    public static final String VERSION_HEADER = "X-Accounts-Version";
+    public static final String DELTA_HEADER = "X-Accounts-Delta";
+
+    private final HttpClient client;
+    private final Duration readTimeout;
+    private final long totalTimeoutMs;
+    private final double hedgePercentile;
+    private final long hedgeDelayMs;
+    private final long maxBodyBytes;
+
+    public HttpTransport(EAPConfigurationProperties.Http config) {
+        this(config, new EAPConfigurationProperties.ParserLimits().getMaxFileBytes());
+    }
+
+    public HttpTransport(EAPConfigurationProperties.Http config, long maxBodyBytes) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(config.getConnectTimeoutMs()))
+                .build();
+        this.readTimeout = Duration.ofMillis(config.getReadTimeoutMs());
+        this.totalTimeoutMs = config.getTotalTimeoutMs();
+        this.hedgePercentile = config.getHedgePercentile();
+        this.hedgeDelayMs = config.getHedgeDelayMs();
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    long getHedgeDelayMs() {
+        return hedgeDelayMs;
+    }
+
+    static boolean isHttp(URL url) {
+        return "http".equalsIgnoreCase(url.getProtocol()) || "https".equalsIgnoreCase(url.getProtocol());
+    }
+
+    /**
+     * Fetches the URL, sending the given validators and version of a previous response, if any.
+     */
+    public Response get(URL url, String etag, String lastModified, String version) throws IOException {
+        CompletableFuture<Response> future = getAsync(url, etag, lastModified, version);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + url);
+        } catch (ExecutionException e) {
+            throw unwrap(url, e.getCause());
+        }
+    }
+
+    /**
+     * Same as {@link #get(URL, String, String, String)} without blocking. The returned future completes once the
+     * response headers are received, and fails with an {@link HttpTimeoutException} when they aren't within the
+     * total timeout. Cancelling it aborts the request.
+     */
+    public CompletableFuture<Response> getAsync(URL url, String etag, String lastModified, String version) {
+        HttpRequest.Builder request;
+        try {
+            request = HttpRequest.newBuilder(url.toURI())
+                    .timeout(readTimeout)
+                    .header("Accept-Encoding", "gzip, deflate")
+                    .GET();
+        } catch (URISyntaxException e) {
+            return CompletableFuture.failedFuture(new IOException("Invalid URL " + url, e));
+        }
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.header("If-Modified-Since", lastModified);
+        }
+        if (version != null) {
+            request.header(VERSION_HEADER, version);
+        }
+
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(totalTimeoutMs);
+        CompletableFuture<HttpResponse<InputStream>> sent =
+                client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        CompletableFuture<Response> result = sent
+                .orTimeout(totalTimeoutMs, TimeUnit.MILLISECONDS)
+                .handle((response, e) -> {
+                    if (e != null) {
+                        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                        if (cause instanceof TimeoutException) {
+                            cause = new HttpTimeoutException("Request to " + url + " didn't complete in "
+                                    + totalTimeoutMs + "ms");
+                        }
+                        throw new CompletionException(cause);
+                    }
+                    try {
+                        return toResponse(url, response, deadlineNanos);
+                    } catch (IOException ioe) {
+                        closeQuietly(response.body());
+                        throw new CompletionException(ioe);
+                    }
+                });
+        result.whenComplete((response, e) -> {
+            if (result.isCancelled()) {
+                sent.cancel(true);
+                // the headers may have been received already, the body must be released
+                sent.thenAccept(r -> closeQuietly(r.body()));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Releases the connection of a response that won't be read.
+     */
+    static void closeQuietly(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+
+    static IOException unwrap(URL url, Throwable e) {
+        if (e instanceof IOException) {
+            return (IOException) e;
+        }
+        return new IOException("Unable to fetch " + url, e);
+    }
+
+    private Response toResponse(URL url, HttpResponse<InputStream> response, long deadlineNanos)
+            throws IOException {
+        int status = response.statusCode();
+        if (status == 304) {
+            closeQuietly(response.body());
+            return new Response(true, null, null, null, null, false);
+        }
+        if (status < 200 || status >= 300) {
+            throw new IOException("Unexpected status " + status + " fetching " + url);
+        }
+        if (response.headers().firstValueAsLong("Content-Length").orElse(-1) > maxBodyBytes) {
+            throw new IOException("Response of " + url + " is larger than the limit of " + maxBodyBytes + " bytes");
+        }
+        // closing the body cancels the exchange, so a server stalling in the middle of it is cut off as well
+        InputStream body = response.body();
+        long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        CompletableFuture.delayedExecutor(Math.max(0, remainingMs), TimeUnit.MILLISECONDS)
+                .execute(() -> closeQuietly(body));
+        return new Response(false, decode(response, new DeadlineInputStream(
+                        new SizeLimitedInputStream(body, maxBodyBytes), url, deadlineNanos)),
+                response.headers().firstValue("ETag").orElse(null),
+                response.headers().firstValue("Last-Modified").orElse(null),
+                response.headers().firstValue(VERSION_HEADER).orElse(null),
+                response.headers().firstValue(DELTA_HEADER).map("true"::equalsIgnoreCase).orElse(false));
+    }
+
+    private static InputStream decode(HttpResponse<?> response, InputStream body) throws IOException {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("identity").trim();
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(body);
+        }
+        if ("deflate".equalsIgnoreCase(encoding)) {
+            return new InflaterInputStream(body);
+        }
+        return body;
+    }
+
+    /**
+     * Fails reads once the total timeout of the request has elapsed.
+     */
+    private class DeadlineInputStream extends FilterInputStream {
+        private final URL url;
+        private final long deadlineNanos;
+
+        DeadlineInputStream(InputStream in, URL url, long deadlineNanos) {
+            super(in);
+            this.url = url;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkDeadline();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkDeadline();
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkDeadline();
+            return super.skip(n);
+        }
+
+        private void checkDeadline() throws HttpTimeoutException {
+            if (System.nanoTime() - deadlineNanos > 0) {
+                throw new HttpTimeoutException("Request to " + url + " didn't complete in " + totalTimeoutMs + "ms");
+            }
+        }
+    }
+
+    @Data
+    public static class Response {
+        private final boolean notModified;
+        private final InputStream body;
+        private final String etag;
+        private final String lastModified;
+        private final String version;
+        private final boolean delta;
+    }
+}
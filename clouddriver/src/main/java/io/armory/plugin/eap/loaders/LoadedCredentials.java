@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Account definitions loaded in a single pass, grouped by the provider type they were bound to.
+ * <p>
+ * Values resolved from secret or {@code ${VAR}} references are recorded per account, so that the accounts can be
+ * written out again without their secrets. They are keyed by the string instance the account was bound with rather
+ * than by value, so a literal equal to a resolved value is still written as it is.
+ */
+public class LoadedCredentials {
+
+    private final Map<Class<? extends CredentialsDefinition>, List<CredentialsDefinition>> byType = new LinkedHashMap<>();
+    private final Map<CredentialsDefinition, Map<String, String>> references = new IdentityHashMap<>();
+    private Map<String, String> binding = new IdentityHashMap<>();   // references of the account being bound
+
+    public void add(Class<? extends CredentialsDefinition> type, List<? extends CredentialsDefinition> credentials) {
+        byType.computeIfAbsent(type, t -> new ArrayList<>()).addAll(credentials);
+    }
+
+    public void addAll(LoadedCredentials other) {
+        other.byType.forEach(this::add);
+        references.putAll(other.references);
+    }
+
+    /**
+     * Keeps the references the given account of {@code other} was bound with.
+     */
+    void addReferences(LoadedCredentials other, CredentialsDefinition account) {
+        Map<String, String> accountReferences = other.references.get(account);
+        if (accountReferences != null) {
+            references.put(account, accountReferences);
+        }
+    }
+
+    /**
+     * Starts recording the references resolved while binding an account, dropping those of a failed binding.
+     */
+    void beginAccount() {
+        binding.clear();
+    }
+
+    void addReference(String value, String reference) {
+        binding.put(value, reference);
+    }
+
+    /**
+     * Assigns the references recorded since {@link #beginAccount()} to the account they were bound to.
+     */
+    void endAccount(CredentialsDefinition account) {
+        if (account == null || binding.isEmpty()) {
+            return;
+        }
+        references.put(account, binding);
+        binding = new IdentityHashMap<>();
+    }
+
+    /**
+     * The references the values of the given account were resolved from, keyed by value instance.
+     */
+    Map<String, String> referencesOf(CredentialsDefinition account) {
+        return references.getOrDefault(account, Collections.emptyMap());
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends CredentialsDefinition> List<T> get(Class<T> type) {
+        return (List<T>) byType.getOrDefault(type, Collections.emptyList());
+    }
+
+    public int size() {
+        return byType.values().stream().mapToInt(List::size).sum();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * A URL and the mirrors serving the same content, asked in order of their recent latencies.
+ * <p>
+ * The fastest healthy URL is asked first. When it doesn't answer within the configured percentile of its recent
+ * latencies, the next one is asked as well and the first successful answer wins, the other requests being
+ * cancelled. A failed request moves on to the next URL right away.
+ */
+@Slf4j
+class MirrorGroup {
+
+    private static final int LATENCY_WINDOW = 32;
+    private static final int MIN_LATENCY_SAMPLES = 5;
+
+    private final List<Mirror> mirrors;
+    private final HttpTransport transport;
+
+    MirrorGroup(URL url, List<URL> mirrorUrls, HttpTransport transport) {
+        this.mirrors = new ArrayList<>();
+        this.mirrors.add(new Mirror(url));
+        mirrorUrls.forEach(m -> this.mirrors.add(new Mirror(m)));
+        this.transport = transport;
+    }
+
+    /**
+     * URLs in the order they are asked: healthy ones first, then the fastest. Not measured URLs keep their
+     * configured order, after the measured ones.
+     */
+    List<URL> ordered() {
+        return sorted().stream().map(m -> m.url).collect(Collectors.toList());
+    }
+
+    private List<Mirror> sorted() {
+        List<Mirror> sorted = new ArrayList<>(mirrors);
+        sorted.sort(Comparator.<Mirror>comparingInt(m -> m.failures).thenComparingLong(m -> m.percentile(50)));
+        return sorted;
+    }
+
+    /**
+     * Fetches the content from the first URL to answer, see {@link HttpTransport#get(URL, String, String, String)}.
+     * Only called from a single thread at a time.
+     */
+    HttpTransport.Response get(String etag, String lastModified, String version) throws IOException {
+        List<Mirror> candidates = sorted();
+        BlockingQueue<Attempt> completed = new LinkedBlockingQueue<>();
+        List<Attempt> pending = new ArrayList<>();
+        IOException failure = null;
+        int next = 0;
+        long hedgeAt = 0;
+        try {
+            while (true) {
+                if (pending.isEmpty() || (next < candidates.size() && System.nanoTime() >= hedgeAt)) {
+                    if (next == candidates.size()) {
+                        throw failure;
+                    }
+                    if (!pending.isEmpty()) {
+                        log.debug("No answer from {} yet, also asking {}", pending.get(pending.size() - 1).mirror.url,
+                                candidates.get(next).url);
+                    }
+                    Attempt attempt = new Attempt(candidates.get(next++), etag, lastModified, version, completed);
+                    pending.add(attempt);
+                    hedgeAt = attempt.startNanos + TimeUnit.MILLISECONDS.toNanos(hedgeDelayMs(attempt.mirror));
+                }
+                Attempt done = next < candidates.size()
+                        ? completed.poll(Math.max(0, hedgeAt - System.nanoTime()), TimeUnit.NANOSECONDS)
+                        : completed.take();
+                if (done == null) {
+                    continue;
+                }
+                pending.remove(done);
+                try {
+                    HttpTransport.Response response = done.future.get();
+                    done.mirror.succeeded(done.elapsedMs());
+                    return response;
+                } catch (ExecutionException e) {
+                    done.mirror.failures++;
+                    IOException cause = HttpTransport.unwrap(done.mirror.url, e.getCause());
+                    log.warn("Unable to fetch {}: {}", done.mirror.url, cause.toString());
+                    if (failure == null) {
+                        failure = cause;
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                    hedgeAt = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + mirrors.get(0).url);
+        } finally {
+            for (Attempt attempt : pending) {
+                attempt.future.cancel(true);
+                // an answer that came in too late to be picked still holds its connection
+                attempt.future.thenAccept(response -> {
+                    if (response.getBody() != null) {
+                        HttpTransport.closeQuietly(response.getBody());
+                    }
+                });
+                // a lower bound of its latency, so that a URL slower than its mirrors gets asked later
+                attempt.mirror.latencies.add(attempt.elapsedMs());
+            }
+        }
+    }
+
+    private long hedgeDelayMs(Mirror mirror) {
+        if (mirror.latencies.size() < MIN_LATENCY_SAMPLES) {
+            return transport.getHedgeDelayMs();
+        }
+        return mirror.percentile(transport.getHedgePercentile());
+    }
+
+    private class Attempt {
+        private final Mirror mirror;
+        private final long startNanos = System.nanoTime();
+        private final CompletableFuture<HttpTransport.Response> future;
+
+        Attempt(Mirror mirror, String etag, String lastModified, String version, BlockingQueue<Attempt> completed) {
+            this.mirror = mirror;
+            this.future = transport.getAsync(mirror.url, etag, lastModified, version);
+            this.future.whenComplete((response, e) -> completed.add(this));
+        }
+
+        long elapsedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+
+    private static class Mirror {
+        private final URL url;
+        private final LatencyWindow latencies = new LatencyWindow(LATENCY_WINDOW);
+        private int failures; // consecutive failed requests
+
+        Mirror(URL url) {
+            this.url = url;
+        }
+
+        void succeeded(long latencyMs) {
+            failures = 0;
+            latencies.add(latencyMs);
+        }
+
+        long percentile(double percentile) {
+            return latencies.size() == 0 ? Long.MAX_VALUE : latencies.percentile(percentile);
+        }
+    }
+
+    /**
+     * The last latencies measured for a URL.
+     */
+    private static class LatencyWindow {
+        private final long[] samples;
+        private int size;
+        private int next;
+
+        LatencyWindow(int capacity) {
+            this.samples = new long[capacity];
+        }
+
+        void add(long latencyMs) {
+            samples[next] = latencyMs;
+            next = (next + 1) % samples.length;
+            size = Math.min(size + 1, samples.length);
+        }
+
+        int size() {
+            return size;
+        }
+
+        long percentile(double percentile) {
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+}
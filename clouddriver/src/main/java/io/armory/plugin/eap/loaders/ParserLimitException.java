@@ -0,0 +1,31 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Thrown when a document goes over one of the {@link io.armory.plugin.eap.EAPConfigurationProperties.ParserLimits},
+ * so that it's never mistaken for an ordinary malformed document that parts of a file can be skipped for.
+ */
+class ParserLimitException extends JsonParseException {
+
+    ParserLimitException(JsonParser p, String message) {
+        super(p, message);
+    }
+}
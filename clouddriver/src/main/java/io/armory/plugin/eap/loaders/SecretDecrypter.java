@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.netflix.spectator.api.Registry;
+import com.netflix.spectator.api.patterns.PolledMeter;
+import com.netflix.spinnaker.kork.secrets.SecretManager;
+import io.armory.plugin.eap.EAPConfigurationProperties;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decrypts secret references found in account files. Values that are not secret references are returned as they
+ * are without calling the {@link SecretManager}, and decrypted secrets are cached by reference so that accounts
+ * sharing a secret don't reach the secret backend on every load.
+ */
+public class SecretDecrypter {
+
+    private static final String SECRET_PREFIX = "encrypted:";
+
+    private final SecretManager secretManager;
+    private final Cache<String, String> secrets;
+
+    public SecretDecrypter(SecretManager secretManager, EAPConfigurationProperties.SecretCache config) {
+        this.secretManager = secretManager;
+        this.secrets = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.getTtlMs(), TimeUnit.MILLISECONDS)
+                .maximumSize(config.getMaxSize())
+                .recordStats()
+                .build();
+    }
+
+    public String decrypt(String value) {
+        if (value == null || !value.startsWith(SECRET_PREFIX)) {
+            return value;
+        }
+        String secret = secrets.getIfPresent(value);
+        if (secret == null) {
+            secret = secretManager.decrypt(value);
+            if (secret != null) {
+                secrets.put(value, secret);
+            }
+        }
+        return secret;
+    }
+
+    /**
+     * Publishes the cache hits and misses as {@code eap.secretCache.hits} and {@code eap.secretCache.misses}.
+     */
+    public void registerMetrics(Registry registry) {
+        PolledMeter.using(registry).withName("eap.secretCache.hits")
+                .monitorMonotonicCounter(this, SecretDecrypter::getHitCount);
+        PolledMeter.using(registry).withName("eap.secretCache.misses")
+                .monitorMonotonicCounter(this, SecretDecrypter::getMissCount);
+    }
+
+    public long getHitCount() {
+        return secrets.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return secrets.stats().missCount();
+    }
+}
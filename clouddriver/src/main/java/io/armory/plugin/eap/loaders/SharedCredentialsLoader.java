@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Loads the accounts of all providers in one pass and hands each provider its share of the result.
+ * <p>
+ * Callers arriving while a load is running join it instead of starting a new one, and a finished load is
+ * reused for {@code reuseWindowMs} so that the pollers of the different providers share a single scan.
+ * <p>
+ * When a load fails after a successful one, the last good result is served instead and its age is tracked, so
+ * that a transient outage of the source doesn't fail the reload of every provider.
+ */
+@Slf4j
+public abstract class SharedCredentialsLoader implements Closeable {
+
+    private final long reuseWindowMs;
+    private CompletableFuture<LoadedCredentials> inFlight;
+    private LoadedCredentials lastLoaded;
+    private long lastLoadedAt;
+    // Only written by the thread running doLoad()
+    private LoadedCredentials lastGood;
+    private volatile long lastGoodAt;
+    private volatile boolean stale;
+
+    protected SharedCredentialsLoader(long reuseWindowMs) {
+        this.reuseWindowMs = reuseWindowMs;
+    }
+
+    public <T extends CredentialsDefinition> List<T> getCredentialsDefinitions(Class<T> classType) {
+        return new ArrayList<>(load().get(classType));
+    }
+
+    protected abstract LoadedCredentials doLoad();
+
+    /**
+     * Whether the source has content to load. A loader that isn't ready would only find an empty source.
+     */
+    protected boolean isReady() {
+        return true;
+    }
+
+    /**
+     * How long ago the accounts being served were loaded when the last load failed, or 0 if it succeeded.
+     */
+    public long getStaleMs() {
+        return stale ? System.currentTimeMillis() - lastGoodAt : 0;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    LoadedCredentials load() {
+        CompletableFuture<LoadedCredentials> future;
+        boolean owner = false;
+        synchronized (this) {
+            if (lastLoaded != null && System.currentTimeMillis() - lastLoadedAt < reuseWindowMs) {
+                return lastLoaded;
+            }
+            if (inFlight == null) {
+                inFlight = new CompletableFuture<>();
+                owner = true;
+            } else {
+                log.debug("Joining accounts load already in progress");
+            }
+            future = inFlight;
+        }
+
+        if (owner) {
+            try {
+                LoadedCredentials loaded = loadOrLastGood();
+                synchronized (this) {
+                    lastLoaded = loaded;
+                    lastLoadedAt = System.currentTimeMillis();
+                    inFlight = null;
+                }
+                future.complete(loaded);
+                return loaded;
+            } catch (Throwable t) {
+                synchronized (this) {
+                    inFlight = null;
+                }
+                future.completeExceptionally(t);
+                throw t;
+            }
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private LoadedCredentials loadOrLastGood() {
+        try {
+            LoadedCredentials loaded = doLoad();
+            lastGood = loaded;
+            lastGoodAt = System.currentTimeMillis();
+            stale = false;
+            return loaded;
+        } catch (RuntimeException e) {
+            if (lastGood == null) {
+                throw e;
+            }
+            stale = true;
+            log.warn("Unable to load accounts, serving the last good result loaded {}ms ago", getStaleMs(), e);
+            return lastGood;
+        }
+    }
+}
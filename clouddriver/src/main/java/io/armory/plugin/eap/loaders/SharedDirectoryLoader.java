@@ -0,0 +1,505 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
+import io.armory.plugin.eap.EAPConfigurationProperties;
+import io.armory.plugin.eap.EAPException;
+import io.armory.plugin.eap.RevisionTracker;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Scans a directory recursively once per load, parsing each matching file a single time for all the
+ * provider types whose file prefixes it matches.
+ * <p>
+ * Parsed files are kept in an index keyed by path together with their size, modification time and content
+ * hash, so that only new or changed files are parsed again and unchanged files reuse their accounts.
+ * Files are parsed on a dedicated pool of {@code parseThreads} threads when configured, and accounts are
+ * always aggregated in path order so their order doesn't depend on which parse finished first.
+ * Directories excluded by the scan settings, {@code .git} by default, are never visited.
+ * In {@link EAPConfigurationProperties.ScanMode#WATCH} mode the directory is only walked when the watcher
+ * starts or loses events, and other loads just look at the paths reported by the file system.
+ * <p>
+ * When the directory is updated by a process publishing its revisions, such as the embedded git poller, the
+ * accounts of the last load are returned as long as the revision doesn't change, and only the paths changed
+ * since that revision are looked at when it does.
+ * <p>
+ * The directory may be a symbolic link swapped to publish each version of the accounts, as the embedded git poller
+ * does. Each load resolves the link once and reads everything from the version it points to, holding that version
+ * until the load is done so that the process swapping the link doesn't delete it in the meantime.
+ */
+@Slf4j
+public class SharedDirectoryLoader extends SharedCredentialsLoader {
+
+    private static final String[] EXTENSIONS = Arrays.stream(EAPConfigurationProperties.FileFormat.values())
+            .flatMap(f -> Arrays.stream(f.getExtensions()))
+            .toArray(String[]::new);
+    // Files modified this close to the last scan may still change without a visible size or mtime change
+    private static final long MTIME_GRANULARITY_MS = 2000;
+
+    private final Path dir;
+    private final CredentialsParser parser;
+    private final Map<Class<? extends CredentialsDefinition>, Set<String>> filePrefixesByType;
+    private final EAPConfigurationProperties.DirScan scan;
+    private final DirectoryWalker walker;
+    private final RevisionTracker revisions;
+    // Only accessed from doLoad(), which never runs concurrently
+    private final Map<Path, IndexedFile> index = new TreeMap<>();
+    private DirectoryWatcher watcher;
+    private boolean watchUnavailable;
+    private LoadedCredentials loaded;
+    private String loadedRevision;
+    private Path loadedRoot;
+    private EnvInterpolator env;                     // environment snapshot of the current load
+    private Path root;                               // dir resolved through symbolic links for the current load
+    private final AtomicInteger parsedFiles = new AtomicInteger();
+    private final ExecutorService parseExecutor;
+
+    @RequiredArgsConstructor
+    private static class IndexedFile {
+        private final long size;
+        private final long lastModified;
+        private final long indexedAt;
+        private final HashCode hash;
+        private final Set<Class<? extends CredentialsDefinition>> types;
+        private final LoadedCredentials credentials;
+
+        boolean isUnchanged(long size, long lastModified, Set<Class<? extends CredentialsDefinition>> types) {
+            return this.size == size && this.lastModified == lastModified &&
+                    lastModified + MTIME_GRANULARITY_MS < indexedAt && this.types.equals(types);
+        }
+
+        /**
+         * The same accounts, never considered unchanged so that the file is read again on the next load.
+         */
+        IndexedFile stale() {
+            return new IndexedFile(size, -1, indexedAt, hash, types, credentials);
+        }
+    }
+
+    public SharedDirectoryLoader(Path dir, CredentialsParser parser,
+                                 Map<Class<? extends CredentialsDefinition>, Set<String>> filePrefixesByType,
+                                 EAPConfigurationProperties.DirScan scan, long reuseWindowMs) {
+        this(dir, parser, filePrefixesByType, scan, reuseWindowMs, null);
+    }
+
+    /**
+     * @param revisions revisions of the directory published by the process updating it, or null
+     */
+    public SharedDirectoryLoader(Path dir, CredentialsParser parser,
+                                 Map<Class<? extends CredentialsDefinition>, Set<String>> filePrefixesByType,
+                                 EAPConfigurationProperties.DirScan scan, long reuseWindowMs,
+                                 RevisionTracker revisions) {
+        super(reuseWindowMs);
+        this.dir = dir;
+        this.revisions = revisions;
+        this.parser = parser;
+        this.filePrefixesByType = filePrefixesByType;
+        this.scan = scan;
+        this.walker = new DirectoryWalker(dir, scan);
+        if (scan.getParseThreads() > 1) {
+            this.parseExecutor = Executors.newFixedThreadPool(scan.getParseThreads(),
+                    new ThreadFactoryBuilder()
+                            .setNameFormat(SharedDirectoryLoader.class.getSimpleName() + "-%d")
+                            .setDaemon(true)
+                            .build());
+        } else {
+            this.parseExecutor = null;
+        }
+    }
+
+    @Override
+    protected LoadedCredentials doLoad() {
+        if (!dir.toFile().exists()) {
+            log.warn("Unable to open directory {} because it doesn't exist.", dir.toFile().getAbsolutePath());
+            stopWatching();
+            index.clear();
+            loaded = null;
+            loadedRevision = null;
+            loadedRoot = null;
+            return new LoadedCredentials();
+        }
+        // the revision is read first, as the link is swapped before the revision it points to is published
+        String revision = revisions != null ? revisions.getCurrent() : null;
+        try {
+            root = revisions != null ? revisions.acquire(dir) : dir.toRealPath();
+        } catch (IOException e) {
+            throw new EAPException("Unable to open directory " + dir.toAbsolutePath(), e);
+        }
+        try {
+            return load(revision);
+        } finally {
+            if (revisions != null) {
+                revisions.release(root);
+            }
+        }
+    }
+
+    private LoadedCredentials load(String revision) {
+        parsedFiles.set(0);
+        env = EnvInterpolator.fromSystemEnv();
+        if (revision == null && !root.equals(loadedRoot)) {
+            // the directory was swapped behind a link, a watcher would still be watching the previous one
+            stopWatching();
+        }
+        Set<Path> changed = revision != null ? revisionChanges() : pollChanges();
+        if (changed != null && changed.isEmpty() && loaded != null) {
+            log.debug("No changes detected in directory {}", dir);
+            loadedRevision = revision;
+            loadedRoot = root;
+            return loaded;
+        }
+        // the index is only committed by loads that succeed, so that a failed one is retried from scratch
+        Map<Path, IndexedFile> committed = new TreeMap<>(index);
+        try {
+            if (changed == null) {
+                fullScan();
+            } else {
+                refresh(changed);
+            }
+            // files may still grow between the check done before parsing them and the time they are read
+            checkSourceBytes(index.values().stream().mapToLong(f -> f.size).sum());
+        } catch (RuntimeException e) {
+            index.clear();
+            index.putAll(committed);
+            // the watcher already reported these changes, the next load has to scan the whole directory
+            stopWatching();
+            throw e;
+        }
+        log.debug("Parsed {} new or changed files", parsedFiles.get());
+        log.debug("Secret cache hits: {}, misses: {}", parser.getSecretDecrypter().getHitCount(),
+                parser.getSecretDecrypter().getMissCount());
+
+        LoadedCredentials result = new LoadedCredentials();
+        index.values().forEach(f -> result.addAll(f.credentials));
+        filePrefixesByType.keySet().forEach(type ->
+                log.info("Loaded {} credentials of type {}", result.get(type).size(), type.getCanonicalName()));
+        loaded = result;
+        loadedRevision = revision;
+        loadedRoot = root;
+        return result;
+    }
+
+    @Override
+    protected boolean isReady() {
+        // the link of the embedded git poller only exists once its first checkout is complete, a directory updated by
+        // another process is ready once that process has written anything to it
+        try (Stream<Path> entries = Files.list(dir)) {
+            return entries.findAny().isPresent();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        stopWatching();
+        if (parseExecutor != null) {
+            parseExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the paths changed since the revision of the previous load, or null when the whole directory must be
+     * scanned.
+     */
+    private Set<Path> revisionChanges() {
+        if (loaded == null || loadedRevision == null) {
+            return null;
+        }
+        Set<Path> changed = revisions.getChangesSince(loadedRevision);
+        if (changed == null) {
+            log.debug("Changes since revision {} of directory {} are unknown", loadedRevision, dir);
+            return null;
+        }
+        return changed.stream().map(dir::resolve).collect(Collectors.toSet());
+    }
+
+    /**
+     * Returns the paths changed since the previous load, or null when the whole directory must be scanned.
+     */
+    private Set<Path> pollChanges() {
+        if (scan.getMode() != EAPConfigurationProperties.ScanMode.WATCH || watchUnavailable) {
+            return null;
+        }
+        try {
+            if (watcher != null) {
+                Set<Path> changed = watcher.pollChanges();
+                if (changed != null) {
+                    return changed;
+                }
+                stopWatching();
+            }
+            // start watching before the full scan, so that changes made while scanning are seen next time
+            watcher = new DirectoryWatcher(dir, walker);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Unable to watch directory {}, falling back to full scans", dir, e);
+            stopWatching();
+            watchUnavailable = true;
+        }
+        return null;
+    }
+
+    private void stopWatching() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                log.debug("Error closing directory watcher", e);
+            }
+            watcher = null;
+        }
+    }
+
+    private void fullScan() {
+        List<Path> files = new ArrayList<>();
+        try {
+            walker.walk(dir, d -> { }, files::add, root);
+        } catch (IOException e) {
+            throw new EAPException("Unable to scan directory " + dir.toAbsolutePath(), e);
+        }
+        // files that are gone don't count towards the size checked before parsing the others
+        index.keySet().retainAll(files);
+        index.keySet().retainAll(refresh(files));
+    }
+
+    /**
+     * Brings the index entries of the given paths up to date, returning the ones holding account files.
+     * Files are parsed on the parse executor when there is one, and results are stored in path order.
+     */
+    private Set<Path> refresh(Collection<Path> paths) {
+        Map<Path, Supplier<IndexedFile>> tasks = new TreeMap<>();
+        for (Path path : expandDirectories(paths)) {
+            Set<Class<? extends CredentialsDefinition>> types = typesForFile(path.getFileName().toString());
+            if (Files.notExists(source(path))) {
+                // also drops everything below the path in case it was a deleted directory
+                index.keySet().removeIf(p -> p.startsWith(path));
+            } else if (types.isEmpty() || !Files.isRegularFile(source(path)) || !walker.accepts(path)) {
+                index.remove(path);
+            } else {
+                IndexedFile previous = index.get(path);
+                tasks.put(path, () -> indexOrKeep(path, types, previous));
+            }
+        }
+        checkSourceBytes(sourceBytes(tasks.keySet()));
+        List<IndexedFile> indexed = indexFiles(new ArrayList<>(tasks.values()));
+        Iterator<IndexedFile> it = indexed.iterator();
+        tasks.keySet().forEach(path -> {
+            IndexedFile file = it.next();
+            if (file != null) {
+                index.put(path, file);
+            } else {
+                index.remove(path);
+            }
+        });
+        return tasks.keySet();
+    }
+
+    /**
+     * Replaces existing directories by the files below them. A directory is reported as modified when its
+     * attributes change, or by polling watchers when files are added to it, and its files must be kept.
+     */
+    private Collection<Path> expandDirectories(Collection<Path> paths) {
+        List<Path> expanded = new ArrayList<>();
+        for (Path path : paths) {
+            if (!Files.isDirectory(source(path))) {
+                expanded.add(path);
+                continue;
+            }
+            Set<Path> files = new HashSet<>();
+            try {
+                walker.walk(path, d -> { }, files::add, root);
+            } catch (IOException e) {
+                throw new EAPException("Unable to scan directory " + path.toAbsolutePath(), e);
+            }
+            index.keySet().removeIf(p -> p.startsWith(path) && !files.contains(p));
+            expanded.addAll(files);
+        }
+        return expanded;
+    }
+
+    /**
+     * Returns the size of the account files once the given ones are indexed, read before any of them is parsed.
+     */
+    private long sourceBytes(Set<Path> refreshed) {
+        long totalBytes = 0;
+        for (Map.Entry<Path, IndexedFile> entry : index.entrySet()) {
+            if (!refreshed.contains(entry.getKey())) {
+                totalBytes += entry.getValue().size;
+            }
+        }
+        for (Path path : refreshed) {
+            try {
+                totalBytes += Files.size(source(path));
+            } catch (IOException e) {
+                // reported when the file is indexed
+            }
+        }
+        return totalBytes;
+    }
+
+    private void checkSourceBytes(long totalBytes) {
+        if (totalBytes > parser.getLimits().getMaxSourceBytes()) {
+            throw new EAPException("Account files in " + dir.toAbsolutePath() + " add up to " + totalBytes
+                    + " bytes, more than the limit of " + parser.getLimits().getMaxSourceBytes());
+        }
+    }
+
+    private List<IndexedFile> indexFiles(List<Supplier<IndexedFile>> tasks) {
+        if (parseExecutor == null || tasks.size() < 2) {
+            return tasks.stream().map(Supplier::get).collect(Collectors.toList());
+        }
+        List<Future<IndexedFile>> futures = tasks.stream()
+                .map(task -> parseExecutor.submit(task::get))
+                .collect(Collectors.toList());
+        List<IndexedFile> indexed = new ArrayList<>(futures.size());
+        try {
+            for (Future<IndexedFile> future : futures) {
+                indexed.add(future.get());
+            }
+            return indexed;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new EAPException("Unable to parse accounts files in " + dir.toAbsolutePath(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EAPException("Interrupted while parsing accounts files in " + dir.toAbsolutePath(), e);
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+    }
+
+    /**
+     * Indexes the file, keeping its last good accounts when it can't be loaded anymore. Returns null for a file
+     * that was never loaded, so that it's skipped until it can be. Either way it is read again the next time it's
+     * scanned.
+     */
+    private IndexedFile indexOrKeep(Path path, Set<Class<? extends CredentialsDefinition>> types,
+                                    IndexedFile previous) {
+        try {
+            return indexFile(path, types, previous);
+        } catch (EAPException e) {
+            if (previous == null) {
+                log.error("Skipping account file {} until it can be loaded", path.toAbsolutePath(), e);
+                return null;
+            }
+            log.warn("Unable to load account file {}, keeping its accounts loaded {}ms ago", path.toAbsolutePath(),
+                    System.currentTimeMillis() - previous.indexedAt, e);
+            return previous.stale();
+        }
+    }
+
+    private IndexedFile indexFile(Path path, Set<Class<? extends CredentialsDefinition>> types, IndexedFile previous) {
+        long now = System.currentTimeMillis();
+        try {
+            Path source = source(path);
+            BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            long size = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            if (previous != null && previous.isUnchanged(size, lastModified, types)) {
+                return previous;
+            }
+            if (size > parser.getLimits().getMaxFileBytes()) {
+                throw new EAPException("Account file " + path.toAbsolutePath() + " is " + size
+                        + " bytes, more than the limit of " + parser.getLimits().getMaxFileBytes());
+            }
+            // hashed and parsed as streams so that large generated files are never held in memory
+            HashCode hash = hash(source);
+            if (previous != null && previous.hash.equals(hash) && previous.types.equals(types)) {
+                return new IndexedFile(size, lastModified, now, hash, types, previous.credentials);
+            }
+            parsedFiles.incrementAndGet();
+            LoadedCredentials credentials;
+            try (InputStream is = new BufferedInputStream(Files.newInputStream(source))) {
+                credentials = parser.parse(is, formatOf(path), types, env);
+            }
+            return new IndexedFile(size, lastModified, now, hash, types, credentials);
+        } catch (IOException e) {
+            throw new EAPException("Unable to load configuration from " + path.toAbsolutePath(), e);
+        }
+    }
+
+    private static HashCode hash(Path file) throws IOException {
+        try (HashingInputStream is = new HashingInputStream(Hashing.sha256(), Files.newInputStream(file))) {
+            ByteStreams.exhaust(is);
+            return is.hash();
+        }
+    }
+
+    /**
+     * Where a path of the directory is read from by the current load.
+     */
+    private Path source(Path path) {
+        return root.resolve(dir.relativize(path));
+    }
+
+    private static EAPConfigurationProperties.FileFormat formatOf(Path path) {
+        String fileName = path.getFileName().toString();
+        for (EAPConfigurationProperties.FileFormat format : EAPConfigurationProperties.FileFormat.values()) {
+            if (FilenameUtils.isExtension(fileName, format.getExtensions())) {
+                return format;
+            }
+        }
+        return EAPConfigurationProperties.FileFormat.YAML;
+    }
+
+    private Set<Class<? extends CredentialsDefinition>> typesForFile(String fileName) {
+        Set<Class<? extends CredentialsDefinition>> types = new HashSet<>();
+        if (!FilenameUtils.isExtension(fileName, EXTENSIONS)) {
+            return types;
+        }
+        filePrefixesByType.forEach((type, prefixes) -> {
+            if (prefixes.stream().anyMatch(fileName::startsWith)) {
+                types.add(type);
+            }
+        });
+        return types;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
+import io.armory.plugin.eap.EAPException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Loads accounts from several URLs in parallel and merges them into a single result.
+ * <p>
+ * URLs are fetched on a bounded pool, each one with the timeouts of its transport. A URL that fails keeps
+ * contributing the accounts of its last successful load, as every URL loader serves its last good result, so one
+ * broken endpoint doesn't affect the others. A URL that never loaded is skipped.
+ * <p>
+ * The merged load waits at most {@code loadTimeoutMs} for all the URLs. A URL that hasn't answered by then
+ * contributes its last result and its fetch keeps running in the background, so the next load picks it up instead
+ * of asking the URL again.
+ * When several URLs define an account with the same name for a provider, the URL listed first wins.
+ */
+@Slf4j
+public class SharedMultiURLLoader extends SharedCredentialsLoader {
+
+    private final List<SharedURLLoader> endpoints;
+    private final Set<Class<? extends CredentialsDefinition>> types;
+    private final ExecutorService fetchExecutor;
+    private final long loadTimeoutMs;
+    private final AtomicReferenceArray<LoadedCredentials> lastResults;
+    // Only accessed from doLoad(), which never runs concurrently
+    private final List<CompletableFuture<LoadedCredentials>> fetches;
+
+    public SharedMultiURLLoader(List<SharedURLLoader> endpoints, Set<Class<? extends CredentialsDefinition>> types,
+                                int fetchThreads, long loadTimeoutMs, long reuseWindowMs) {
+        super(reuseWindowMs);
+        this.endpoints = endpoints;
+        this.types = types;
+        this.loadTimeoutMs = loadTimeoutMs;
+        this.lastResults = new AtomicReferenceArray<>(endpoints.size());
+        this.fetches = new ArrayList<>(endpoints.size());
+        endpoints.forEach(endpoint -> fetches.add(null));
+        this.fetchExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(fetchThreads, endpoints.size())),
+                new ThreadFactoryBuilder()
+                        .setNameFormat(SharedMultiURLLoader.class.getSimpleName() + "-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    @Override
+    protected LoadedCredentials doLoad() {
+        for (int i = 0; i < endpoints.size(); i++) {
+            if (fetches.get(i) == null || fetches.get(i).isDone()) {
+                fetches.set(i, fetch(i));
+            } else {
+                log.debug("Still waiting for the previous load of {}", endpoints.get(i).getUrl());
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(loadTimeoutMs);
+        List<LoadedCredentials> results = new ArrayList<>(endpoints.size());
+        int failed = 0;
+        try {
+            for (int i = 0; i < endpoints.size(); i++) {
+                SharedURLLoader endpoint = endpoints.get(i);
+                try {
+                    results.add(fetches.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (ExecutionException e) {
+                    failed++;
+                    log.warn("Unable to load accounts from {}, skipping it", endpoint.getUrl(), e.getCause());
+                    results.add(new LoadedCredentials());
+                } catch (TimeoutException e) {
+                    LoadedCredentials last = lastResults.get(i);
+                    if (last == null) {
+                        failed++;
+                        log.warn("No accounts from {} after {}ms, skipping it until it answers", endpoint.getUrl(),
+                                loadTimeoutMs);
+                        results.add(new LoadedCredentials());
+                    } else {
+                        log.warn("No accounts from {} after {}ms, serving its last result", endpoint.getUrl(),
+                                loadTimeoutMs);
+                        results.add(last);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EAPException("Interrupted while loading accounts", e);
+        }
+        if (failed == endpoints.size()) {
+            throw new EAPException("Unable to load accounts from any of the " + endpoints.size() + " URLs");
+        }
+        return merge(results);
+    }
+
+    private CompletableFuture<LoadedCredentials> fetch(int i) {
+        CompletableFuture<LoadedCredentials> fetch = CompletableFuture.supplyAsync(endpoints.get(i)::load,
+                fetchExecutor);
+        fetch.thenAccept(loaded -> lastResults.set(i, loaded));
+        return fetch;
+    }
+
+    private LoadedCredentials merge(List<LoadedCredentials> results) {
+        LoadedCredentials merged = new LoadedCredentials();
+        for (Class<? extends CredentialsDefinition> type : types) {
+            Map<String, URL> urlByName = new HashMap<>();
+            List<CredentialsDefinition> accounts = new ArrayList<>();
+            for (int i = 0; i < results.size(); i++) {
+                URL url = endpoints.get(i).getUrl();
+                for (CredentialsDefinition account : results.get(i).get(type)) {
+                    URL definedBy = urlByName.putIfAbsent(account.getName(), url);
+                    if (definedBy == null) {
+                        accounts.add(account);
+                        merged.addReferences(results.get(i), account);
+                    } else {
+                        log.warn("Ignoring account {} of type {} from {}, it is already defined by {}",
+                                account.getName(), type.getSimpleName(), url, definedBy);
+                    }
+                }
+            }
+            merged.add(type, accounts);
+        }
+        return merged;
+    }
+
+    @Override
+    public void close() {
+        fetchExecutor.shutdownNow();
+        endpoints.forEach(SharedURLLoader::close);
+    }
+}
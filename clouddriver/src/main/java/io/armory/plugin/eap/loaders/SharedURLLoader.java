@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
+import io.armory.plugin.eap.EAPConfigurationProperties;
+import io.armory.plugin.eap.EAPException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fetches a URL once per load and parses it a single time for all the requested provider types.
+ * <p>
+ * HTTP sources are fetched with conditional requests: the {@code ETag} and {@code Last-Modified} validators of the
+ * last parsed response are sent back, and when the server answers 304 the previous result is reused as is. They
+ * can have mirrors serving the same content, see {@link MirrorGroup}. Servers supporting incremental updates only
+ * send the accounts changed since the last load, which are applied to the previous result, see
+ * {@link HttpTransport}.
+ */
+@Slf4j
+public class SharedURLLoader extends SharedCredentialsLoader {
+
+    private final URL url;
+    private final EAPConfigurationProperties.FileFormat format;
+    private final CredentialsParser parser;
+    private final MirrorGroup mirrors;
+    private final Set<Class<? extends CredentialsDefinition>> types;
+    // Only accessed from doLoad(), which never runs concurrently
+    private LoadedCredentials parsed;
+    private String etag;
+    private String lastModified;
+    private String version;
+    private String fetchedEtag;
+    private String fetchedLastModified;
+    private String fetchedVersion;
+    private boolean fetchedDelta;
+
+    /**
+     * @param transport client fetching HTTP URLs, may only be null when {@link #getInputStream()} is overridden
+     */
+    public SharedURLLoader(URL url, EAPConfigurationProperties.FileFormat format, CredentialsParser parser,
+                           HttpTransport transport, Set<Class<? extends CredentialsDefinition>> types,
+                           long reuseWindowMs) {
+        this(url, List.of(), format, parser, transport, types, reuseWindowMs);
+    }
+
+    public SharedURLLoader(URL url, List<URL> mirrors, EAPConfigurationProperties.FileFormat format,
+                           CredentialsParser parser, HttpTransport transport,
+                           Set<Class<? extends CredentialsDefinition>> types, long reuseWindowMs) {
+        super(reuseWindowMs);
+        this.url = url;
+        this.format = format;
+        this.parser = parser;
+        this.mirrors = new MirrorGroup(url, mirrors, transport);
+        this.types = types;
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    /**
+     * Opens the content to parse, or returns null when the server reports that it didn't change since the last
+     * successful load.
+     */
+    protected InputStream getInputStream() throws IOException {
+        if (!HttpTransport.isHttp(url)) {
+            return url.openStream();
+        }
+        HttpTransport.Response response = parsed != null
+                ? mirrors.get(etag, lastModified, version)
+                : mirrors.get(null, null, null);
+        if (response.isNotModified()) {
+            if (parsed == null) {
+                throw new IOException("Unexpected not modified response from " + url);
+            }
+            return null;
+        }
+        if (response.isDelta() && parsed == null) {
+            throw new IOException("Unexpected incremental update from " + url);
+        }
+        fetchedEtag = response.getEtag();
+        fetchedLastModified = response.getLastModified();
+        fetchedVersion = response.getVersion();
+        fetchedDelta = response.isDelta();
+        return response.getBody();
+    }
+
+    @Override
+    protected LoadedCredentials doLoad() {
+        fetchedEtag = null;
+        fetchedLastModified = null;
+        fetchedVersion = null;
+        fetchedDelta = false;
+        try (InputStream is = getInputStream()) {
+            if (is == null) {
+                log.debug("Accounts at {} not modified, reusing the previous result", url);
+                return parsed;
+            }
+            if (fetchedDelta) {
+                CredentialsDelta delta = parser.parseDelta(is, format, types);
+                log.debug("Applying {} account changes from {} to the previous result", delta.size(), url);
+                parsed = delta.applyTo(parsed, types);
+            } else {
+                parsed = parser.parse(is, format, types);
+            }
+            etag = fetchedEtag;
+            lastModified = fetchedLastModified;
+            version = fetchedVersion;
+            return parsed;
+        } catch (IOException e) {
+            throw new EAPException("Unable to load configuration from " + url, e);
+        }
+    }
+}
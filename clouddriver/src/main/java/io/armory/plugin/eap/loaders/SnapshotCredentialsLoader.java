@@ -0,0 +1,227 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Serves the accounts of the last successful load, persisted to a file, while the source is loaded for the first
+ * time, so that clouddriver has accounts as soon as it starts instead of waiting for a clone or a fetch and a full
+ * parse. The first load of the source runs in the background once the source is ready, and its accounts replace
+ * the snapshot ones when it's done.
+ * <p>
+ * The snapshot is a Smile document in the layout keyed by provider name, after a header holding the snapshot
+ * version, the source it was loaded from and when. Secrets and {@code ${VAR}} references are stored as they are
+ * written in the source and resolved again when the snapshot is read, so no decrypted secret is written to disk.
+ * The file is replaced atomically whenever a load of the source returns accounts that encode differently from the
+ * ones written last, as sources may return equal accounts in new instances on every load.
+ */
+@Slf4j
+public class SnapshotCredentialsLoader extends SharedCredentialsLoader {
+
+    private static final int MAGIC = 0x45415053; // "EAPS"
+    static final int VERSION = 1;
+
+    private final SharedCredentialsLoader source;
+    private final Path file;
+    private final String origin;
+    private final CredentialsParser parser;
+    private final Set<Class<? extends CredentialsDefinition>> types;
+    private final ExecutorService reconcileExecutor;
+    // Only accessed from doLoad(), which never runs concurrently
+    private LoadedCredentials snapshot;
+    private Future<LoadedCredentials> reconcile;
+    private boolean reconciled;
+    private LoadedCredentials written;
+    private HashCode writtenHash;                    // of the accounts encoded in the snapshot file
+
+    /**
+     * @param origin identifies the source, a snapshot written for another source is ignored
+     */
+    public SnapshotCredentialsLoader(SharedCredentialsLoader source, Path file, String origin,
+                                     CredentialsParser parser, Set<Class<? extends CredentialsDefinition>> types,
+                                     long reuseWindowMs) {
+        super(reuseWindowMs);
+        this.source = source;
+        this.file = file;
+        this.origin = origin;
+        this.parser = parser;
+        this.types = types;
+        this.reconcileExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(SnapshotCredentialsLoader.class.getSimpleName() + "-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    @Override
+    protected LoadedCredentials doLoad() {
+        if (!reconciled) {
+            LoadedCredentials served = serveSnapshot();
+            if (served != null) {
+                return served;
+            }
+        }
+        return persist(source.load());
+    }
+
+    @Override
+    protected boolean isReady() {
+        return source.isReady();
+    }
+
+    @Override
+    public void close() {
+        reconcileExecutor.shutdownNow();
+        source.close();
+    }
+
+    /**
+     * Returns the snapshot accounts until the first load of the source is done, then null.
+     */
+    private LoadedCredentials serveSnapshot() {
+        if (snapshot == null) {
+            snapshot = read();
+            if (snapshot == null) {
+                reconciled = true;
+                return null;
+            }
+        }
+        if (reconcile == null) {
+            if (!source.isReady()) {
+                log.debug("Accounts source is not ready, serving the snapshot {}", file);
+                return snapshot;
+            }
+            reconcile = reconcileExecutor.submit(source::load);
+        }
+        if (!reconcile.isDone()) {
+            return snapshot;
+        }
+        try {
+            LoadedCredentials loaded = reconcile.get();
+            reconciled = true;
+            snapshot = null;
+            reconcileExecutor.shutdown();
+            log.info("Accounts source loaded, replacing the accounts of the snapshot {}", file);
+            return persist(loaded);
+        } catch (ExecutionException e) {
+            log.warn("Unable to load accounts, serving the snapshot {} until they can be", file, e.getCause());
+            reconcile = null;
+            return snapshot;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return snapshot;
+        }
+    }
+
+    private LoadedCredentials read() {
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int magic = is.readInt();
+            int version = is.readInt();
+            if (magic != MAGIC || version != VERSION) {
+                log.info("Ignoring snapshot {} of an unsupported version", file);
+                return null;
+            }
+            String snapshotOrigin = is.readUTF();
+            if (!origin.equals(snapshotOrigin)) {
+                log.info("Ignoring snapshot {} of another source: {}", file, snapshotOrigin);
+                return null;
+            }
+            long createdAt = is.readLong();
+            HashingInputStream accounts = new HashingInputStream(Hashing.sha256(), is);
+            LoadedCredentials loaded = parser.parseSnapshot(accounts, types);
+            log.info("Loaded {} accounts from snapshot {} written {}ms ago", loaded.size(), file,
+                    System.currentTimeMillis() - createdAt);
+            // the snapshot is already on disk, there's no need to write it again
+            written = loaded;
+            writtenHash = accounts.hash();
+            return loaded;
+        } catch (NoSuchFileException e) {
+            log.info("No accounts snapshot found at {}", file);
+            return null;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to read accounts snapshot {}, ignoring it", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the accounts to the snapshot file unless they were already written. Accounts loaded again are encoded
+     * once without being written, and only written when their encoding differs from the snapshot file.
+     */
+    private LoadedCredentials persist(LoadedCredentials loaded) {
+        if (loaded == written) {
+            return loaded;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            HashCode hash = hash(loaded);
+            if (hash.equals(writtenHash)) {
+                written = loaded;
+                log.debug("Accounts are unchanged, keeping snapshot {}", file);
+                return loaded;
+            }
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                DataOutputStream header = new DataOutputStream(os);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.writeUTF(origin);
+                header.writeLong(System.currentTimeMillis());
+                header.flush();
+                parser.writeSnapshot(loaded, types, os);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written = loaded;
+            writtenHash = hash;
+            log.debug("Wrote {} accounts to snapshot {}", loaded.size(), file);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to write accounts snapshot {}", file, e);
+        }
+        return loaded;
+    }
+
+    private HashCode hash(LoadedCredentials loaded) throws IOException {
+        HashingOutputStream os = new HashingOutputStream(Hashing.sha256(), ByteStreams.nullOutputStream());
+        parser.writeSnapshot(loaded, types, os);
+        return os.hash();
+    }
+}
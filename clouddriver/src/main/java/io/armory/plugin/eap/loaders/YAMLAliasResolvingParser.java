@@ -0,0 +1,280 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.yaml.YAMLParser;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streams YAML tokens with anchors, aliases and {@code <<} merge keys resolved, as SnakeYAML does when it
+ * builds a document tree. Only anchored nodes are buffered; everything else is passed through as it is read.
+ * Anchors are scoped to their document and released when the next document of the stream starts.
+ * <p>
+ * As aliases are expanded rather than shared, the number of aliases and of tokens they expand to are limited per
+ * document, so that a small document nesting aliases can't expand to an unbounded amount of tokens.
+ */
+class YAMLAliasResolvingParser extends JsonParserDelegate {
+
+    private static final String MERGE_KEY = "<<";
+
+    private final YAMLParser source;
+    private final ObjectCodec codec;
+    private final int maxAliases;
+    private final long maxAliasTokens;
+    private final Map<String, Recorder> anchors = new HashMap<>();
+    private final List<Recorder> recorders = new ArrayList<>();
+    private final Deque<Replay> replays = new ArrayDeque<>();
+    private final Deque<Set<String>> fieldNames = new ArrayDeque<>();
+    private int recordFrom;
+    private int depth; // nesting of the tokens read from the source
+    private int aliases;
+    private long aliasTokens;
+
+    YAMLAliasResolvingParser(YAMLParser source, ObjectCodec codec, int maxAliases, long maxAliasTokens) {
+        super(source);
+        this.source = source;
+        this.codec = codec;
+        this.maxAliases = maxAliases;
+        this.maxAliasTokens = maxAliasTokens;
+    }
+
+    @Override
+    public JsonToken nextToken() throws IOException {
+        JsonToken token = nextResolvedToken();
+        record(token);
+        return token;
+    }
+
+    @Override
+    public JsonToken nextValue() throws IOException {
+        JsonToken token = nextToken();
+        return token == JsonToken.FIELD_NAME ? nextToken() : token;
+    }
+
+    @Override
+    public JsonParser skipChildren() throws IOException {
+        JsonToken token = currentToken();
+        if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+            return this;
+        }
+        // skipped nodes still go through this parser so that the anchors they define are known
+        int open = 1;
+        while ((token = nextToken()) != null) {
+            if (token.isStructStart()) {
+                open++;
+            } else if (token.isStructEnd() && --open == 0) {
+                break;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private JsonToken nextResolvedToken() throws IOException {
+        while (true) {
+            Replay replay = replays.peek();
+            if (replay != null) {
+                JsonToken token = replay.nextToken();
+                if (token != null) {
+                    delegate = replay.parser;
+                    return token;
+                }
+                replays.pop();
+                continue;
+            }
+            delegate = source;
+            JsonToken token = source.nextToken();
+            if (token == null) {
+                return null;
+            }
+            if (depth == 0) { // root of a new document
+                anchors.clear();
+                aliases = 0;
+                aliasTokens = 0;
+            }
+            if (token.isStructStart()) {
+                depth++;
+            } else if (token.isStructEnd()) {
+                depth--;
+            }
+            if (token == JsonToken.VALUE_STRING && source.isCurrentAlias()) {
+                replays.push(new Replay(expand(source.getText()), false));
+            } else if (token == JsonToken.FIELD_NAME && MERGE_KEY.equals(source.getCurrentName())) {
+                merge();
+            } else {
+                if (token == JsonToken.START_OBJECT) {
+                    fieldNames.push(new HashSet<>());
+                } else if (token == JsonToken.END_OBJECT) {
+                    fieldNames.pop();
+                } else if (token == JsonToken.FIELD_NAME) {
+                    fieldNames.peek().add(source.getCurrentName());
+                }
+                return token;
+            }
+        }
+    }
+
+    /**
+     * Replaces a merge key with the fields of the mapping, or list of mappings, it refers to. Fields already
+     * read from the enclosing mapping are left out, and fields read after the merge key take precedence as the
+     * last value of a field is the one that is bound.
+     */
+    private void merge() throws IOException {
+        int previousRecordFrom = recordFrom;
+        recordFrom = recorders.size(); // the enclosing anchors record the merged fields instead
+        TokenBuffer merged = new TokenBuffer(codec, false);
+        try {
+            nextToken();
+            merged.copyCurrentStructure(this);
+        } finally {
+            recordFrom = previousRecordFrom;
+        }
+
+        JsonParser parser = merged.asParser(codec);
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_OBJECT) {
+            replays.push(inline(parser));
+        } else if (token == JsonToken.START_ARRAY) {
+            List<Replay> mappings = new ArrayList<>();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                mappings.add(inline(parser));
+            }
+            // fields of the first mapping in the list take precedence, so it is replayed last
+            mappings.forEach(replays::push);
+        } else {
+            throw new JsonParseException(this, "Merge key must refer to a mapping or a list of mappings");
+        }
+    }
+
+    private Replay inline(JsonParser mapping) throws IOException {
+        Set<String> explicit = fieldNames.peek();
+        TokenBuffer fields = new TokenBuffer(codec, false);
+        fields.writeStartObject();
+        while (mapping.nextToken() == JsonToken.FIELD_NAME) {
+            if (explicit.contains(mapping.getCurrentName())) {
+                mapping.nextToken();
+                mapping.skipChildren();
+            } else {
+                fields.copyCurrentStructure(mapping);
+            }
+        }
+        fields.writeEndObject();
+        JsonParser parser = fields.asParser(codec);
+        parser.nextToken();
+        return new Replay(parser, true);
+    }
+
+    private JsonParser expand(String alias) throws IOException {
+        Recorder anchored = anchors.get(alias);
+        if (anchored == null) {
+            throw new JsonParseException(this, "Unknown alias *" + alias);
+        }
+        if (++aliases > maxAliases) {
+            throw new ParserLimitException(this, "Document has more aliases than the limit of " + maxAliases);
+        }
+        aliasTokens += anchored.tokens;
+        if (aliasTokens > maxAliasTokens) {
+            throw new ParserLimitException(this, "Aliases of the document expand to more tokens than the limit of "
+                    + maxAliasTokens);
+        }
+        return anchored.buffer.asParser(codec);
+    }
+
+    private void record(JsonToken token) throws IOException {
+        if (token == null) {
+            return;
+        }
+        if (delegate == source && token != JsonToken.FIELD_NAME && !token.isStructEnd()) {
+            Object anchor = source.getObjectId();
+            if (anchor != null) {
+                recorders.add(new Recorder(anchor.toString(), new TokenBuffer(codec, false)));
+            }
+        }
+        for (int i = recorders.size() - 1; i >= recordFrom; i--) {
+            Recorder recorder = recorders.get(i);
+            recorder.buffer.copyCurrentEvent(this);
+            recorder.tokens++;
+            if (token.isStructStart()) {
+                recorder.depth++;
+            } else if (token.isStructEnd()) {
+                recorder.depth--;
+            }
+            if (recorder.depth == 0 && token != JsonToken.FIELD_NAME) {
+                anchors.put(recorder.anchor, recorder);
+                recorders.remove(i);
+            }
+        }
+    }
+
+    private static class Recorder {
+        private final String anchor;
+        private final TokenBuffer buffer;
+        private int depth;
+        private long tokens;
+
+        Recorder(String anchor, TokenBuffer buffer) {
+            this.anchor = anchor;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Tokens of a buffered node. Inlined mappings are replayed without their start and end markers.
+     */
+    private static class Replay {
+        private final JsonParser parser;
+        private final boolean inline;
+        private int depth;
+
+        Replay(JsonParser parser, boolean inline) {
+            this.parser = parser;
+            this.inline = inline;
+        }
+
+        JsonToken nextToken() throws IOException {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return null;
+            }
+            if (token.isStructStart()) {
+                depth++;
+            } else if (token.isStructEnd() && --depth < 0 && inline) {
+                return null;
+            }
+            return token;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.netflix.spinnaker.clouddriver.kubernetes.config.KubernetesAccountProperties;
+import com.netflix.spinnaker.kork.secrets.SecretManager;
+import io.armory.plugin.eap.EAPConfigurationProperties.FileFormat;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the time taken to parse the same generated accounts list in each supported format. Not run with the
+ * tests, start it with the number of accounts and iterations as optional arguments.
+ */
+public class CredentialsParserBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        SecretManager secretManager = mock(SecretManager.class);
+        when(secretManager.decrypt(anyString())).thenAnswer(
+                (Answer<String>) invocation -> invocation.getArgument(0, String.class));
+        CredentialsParser parser = CredentialsParser.forSecretManager(secretManager);
+
+        List<Map<String, Object>> document = generate(accounts);
+        Map<FileFormat, byte[]> contents = new LinkedHashMap<>();
+        contents.put(FileFormat.YAML, new ObjectMapper(new YAMLFactory()).writeValueAsBytes(document));
+        contents.put(FileFormat.JSON, new ObjectMapper().writeValueAsBytes(document));
+        contents.put(FileFormat.NDJSON, lines(document));
+        contents.put(FileFormat.SMILE, new ObjectMapper(new SmileFactory()).writeValueAsBytes(document));
+        contents.put(FileFormat.CBOR, new ObjectMapper(new CBORFactory()).writeValueAsBytes(document));
+
+        System.out.printf("%d accounts, %d iterations%n", accounts, iterations);
+        System.out.printf("%-8s %12s %12s%n", "format", "size (KB)", "ms/parse");
+        for (Map.Entry<FileFormat, byte[]> entry : contents.entrySet()) {
+            // the first half of the iterations warms the parser up
+            for (int i = 0; i < iterations / 2; i++) {
+                parse(parser, entry.getKey(), entry.getValue(), accounts);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                parse(parser, entry.getKey(), entry.getValue(), accounts);
+            }
+            double msPerParse = (System.nanoTime() - start) / 1e6 / iterations;
+            System.out.printf("%-8s %12d %12.2f%n", entry.getKey(), entry.getValue().length / 1024, msPerParse);
+        }
+    }
+
+    private static void parse(CredentialsParser parser, FileFormat format, byte[] content, int expected)
+            throws IOException {
+        int parsed = parser.parse(new ByteArrayInputStream(content), format,
+                Set.of(KubernetesAccountProperties.ManagedAccount.class)).size();
+        if (parsed != expected) {
+            throw new IllegalStateException(format + " yielded " + parsed + " accounts instead of " + expected);
+        }
+    }
+
+    private static List<Map<String, Object>> generate(int count) {
+        List<Map<String, Object>> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> account = new LinkedHashMap<>();
+            account.put("name", "kube-" + i);
+            account.put("context", "context-" + i);
+            account.put("kubeconfigFile", "encrypted:s3!r:us-west-2!b:kubeconfigs!f:kube-" + i);
+            account.put("namespaces", List.of("team-" + (i % 50), "shared"));
+            account.put("cacheThreads", 1);
+            account.put("cacheIntervalSeconds", 30);
+            account.put("onlySpinnakerManaged", true);
+            account.put("permissions", Map.of("READ", List.of("team-" + (i % 50)), "WRITE", List.of("admins")));
+            accounts.add(account);
+        }
+        return accounts;
+    }
+
+    private static byte[] lines(List<Map<String, Object>> document) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Map<String, Object> account : document) {
+            out.write(mapper.writeValueAsBytes(account));
+            out.write("\n".getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.netflix.spinnaker.clouddriver.kubernetes.config.KubernetesAccountProperties;
+import com.netflix.spinnaker.kork.secrets.SecretManager;
+import io.armory.plugin.eap.EAPConfigurationProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CredentialsParserTest {
+
+    private SecretManager secretManager;
+    private EAPConfigurationProperties.ParserLimits limits;
+
+    @BeforeEach
+    public void setUp() {
+        secretManager = mock(SecretManager.class);
+        when(secretManager.decrypt(anyString())).thenAnswer(
+                (Answer<String>) invocation -> invocation.getArgument(0, String.class));
+        limits = new EAPConfigurationProperties.ParserLimits();
+    }
+
+    @Test
+    public void testRejectTooManyAliases() {
+        limits.setMaxAliases(2);
+        String yaml = "- &a\n  name: kube-1\n- *a\n- *a\n- *a\n";
+
+        IOException e = assertThrows(IOException.class, () -> parse(yaml, EAPConfigurationProperties.FileFormat.YAML));
+        assertTrue(e.getMessage().contains("limit of 2"), e.getMessage());
+    }
+
+    @Test
+    public void testRejectAliasExpansion() {
+        // each level refers twice to the previous one, doubling the tokens it expands to
+        StringBuilder yaml = new StringBuilder("- name: kube-1\n  l0: &l0 [x, x]\n");
+        for (int i = 1; i <= 20; i++) {
+            yaml.append("  l").append(i).append(": &l").append(i)
+                    .append(" [*l").append(i - 1).append(", *l").append(i - 1).append("]\n");
+        }
+
+        IOException e = assertThrows(IOException.class,
+                () -> parse(yaml.toString(), EAPConfigurationProperties.FileFormat.YAML));
+        assertTrue(e.getMessage().contains("limit of " + limits.getMaxAliasTokens()), e.getMessage());
+    }
+
+    @Test
+    public void testRejectDeepNesting() {
+        limits.setMaxDepth(10);
+        String json = "[{\"name\": \"kube-1\", \"nested\": " + "[".repeat(20) + "]".repeat(20) + "}]";
+
+        IOException e = assertThrows(IOException.class, () -> parse(json, EAPConfigurationProperties.FileFormat.JSON));
+        assertTrue(e.getMessage().contains("limit of 10"), e.getMessage());
+    }
+
+    @Test
+    public void testRejectDeepNestingOnNdjsonLine() {
+        limits.setMaxDepth(10);
+        String ndjson = "{\"name\": \"kube-1\"}\n{\"name\": \"kube-2\", \"nested\": " + "[".repeat(20)
+                + "]".repeat(20) + "}\n";
+
+        IOException e = assertThrows(IOException.class,
+                () -> parse(ndjson, EAPConfigurationProperties.FileFormat.NDJSON));
+        assertTrue(e.getMessage().contains("limit of 10"), e.getMessage());
+    }
+
+    @Test
+    public void testRejectLargeDocument() {
+        limits.setMaxFileBytes(64);
+        String json = "[{\"name\": \"kube-1\", \"context\": \"" + "x".repeat(100) + "\"}]";
+
+        IOException e = assertThrows(IOException.class, () -> parse(json, EAPConfigurationProperties.FileFormat.JSON));
+        assertTrue(e.getMessage().contains("limit of 64"), e.getMessage());
+    }
+
+    @Test
+    public void testAcceptDocumentWithinLimits() throws IOException {
+        limits.setMaxAliases(2);
+        String yaml = "- &a\n  name: kube-1\n- *a\n";
+
+        assertEquals(2, parse(yaml, EAPConfigurationProperties.FileFormat.YAML).size());
+    }
+
+    private LoadedCredentials parse(String content, EAPConfigurationProperties.FileFormat format) throws IOException {
+        CredentialsParser parser = CredentialsParser.forSecretManager(secretManager,
+                new EAPConfigurationProperties.SecretCache(), limits);
+        return parser.parse(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), format,
+                Set.of(KubernetesAccountProperties.ManagedAccount.class));
+    }
+}
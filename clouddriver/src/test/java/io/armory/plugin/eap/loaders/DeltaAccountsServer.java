@@ -0,0 +1,128 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Reference server of the incremental accounts protocol described in {@link HttpTransport}, serving Kubernetes
+ * accounts as JSON.
+ * <p>
+ * Every call to {@link #publish(List)} creates a new version. Clients sending one of the last {@code history}
+ * versions get the accounts added, changed and removed since then, other clients get the full document.
+ */
+class DeltaAccountsServer implements Closeable {
+
+    private static final String PROVIDER = "kubernetes";
+
+    private final HttpServer server;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final int history;
+    // accounts by name, for each published version
+    private final List<Map<String, Map<String, Object>>> versions = new ArrayList<>();
+    private final List<Boolean> deltaResponses = new ArrayList<>();
+
+    DeltaAccountsServer(int history) throws IOException {
+        this.history = history;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/accounts.json", this::handle);
+        this.server.start();
+    }
+
+    URL url() throws IOException {
+        return new URL("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + server.getAddress().getPort() + "/accounts.json");
+    }
+
+    synchronized void publish(List<Map<String, Object>> accounts) {
+        Map<String, Map<String, Object>> byName = new LinkedHashMap<>();
+        accounts.forEach(account -> byName.put((String) account.get("name"), account));
+        versions.add(byName);
+    }
+
+    /**
+     * Whether each response sent so far was an incremental update.
+     */
+    synchronized List<Boolean> getDeltaResponses() {
+        return new ArrayList<>(deltaResponses);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        Map<String, Object> provider = new LinkedHashMap<>();
+        int current;
+        boolean delta;
+        synchronized (this) {
+            current = versions.size() - 1;
+            Map<String, Map<String, Object>> latest = versions.get(current);
+            int since = parseVersion(exchange.getRequestHeaders().getFirst(HttpTransport.VERSION_HEADER));
+            delta = since >= 0 && since <= current && current - since <= history;
+            if (delta) {
+                Map<String, Map<String, Object>> previous = versions.get(since);
+                List<Map<String, Object>> changed = new ArrayList<>();
+                latest.forEach((name, account) -> {
+                    if (!Objects.equals(previous.get(name), account)) {
+                        changed.add(account);
+                    }
+                });
+                List<String> removed = new ArrayList<>(previous.keySet());
+                removed.removeAll(latest.keySet());
+                provider.put("accounts", changed);
+                provider.put("removed", removed);
+            } else {
+                provider.put("accounts", new ArrayList<>(latest.values()));
+            }
+            deltaResponses.add(delta);
+        }
+
+        byte[] body = mapper.writeValueAsBytes(Map.of(PROVIDER, provider));
+        exchange.getResponseHeaders().add(HttpTransport.VERSION_HEADER, String.valueOf(current));
+        if (delta) {
+            exchange.getResponseHeaders().add(HttpTransport.DELTA_HEADER, "true");
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static int parseVersion(String version) {
+        try {
+            return version != null ? Integer.parseInt(version) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
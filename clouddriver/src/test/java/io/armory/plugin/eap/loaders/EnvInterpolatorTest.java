@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EnvInterpolatorTest {
+
+    private final EnvInterpolator interpolator = new EnvInterpolator(Map.of("A", "1", "B", "two"));
+
+    @Test
+    public void testValueWithoutReferencesIsReturnedAsIs() {
+        String value = "no $ {references} here";
+        assertSame(value, interpolator.interpolate(value));
+    }
+
+    @Test
+    public void testMultipleReferences() {
+        assertEquals("1-two", interpolator.interpolate("${A}-${B}"));
+        assertEquals("x1ytwoz", interpolator.interpolate("x${A}y${B}z"));
+    }
+
+    @Test
+    public void testDefaultValues() {
+        assertEquals("1", interpolator.interpolate("${A:default}"));
+        assertEquals("default", interpolator.interpolate("${UNKNOWN:default}"));
+        assertEquals("", interpolator.interpolate("${UNKNOWN:}"));
+    }
+
+    @Test
+    public void testUnknownReferencesAreKept() {
+        assertEquals("${UNKNOWN}-two", interpolator.interpolate("${UNKNOWN}-${B}"));
+        assertEquals("${A", interpolator.interpolate("${A"));
+    }
+
+    @Test
+    public void testEscapedReferences() {
+        assertEquals("${A}", interpolator.interpolate("$${A}"));
+        assertEquals("${A}two", interpolator.interpolate("$${A}${B}"));
+    }
+}
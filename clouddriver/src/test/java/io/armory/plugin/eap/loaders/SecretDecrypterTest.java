@@ -0,0 +1,78 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.netflix.spinnaker.kork.secrets.SecretManager;
+import io.armory.plugin.eap.EAPConfigurationProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SecretDecrypterTest {
+
+    private static final String SECRET_REFERENCE = "encrypted:s3!r:us-west-2!b:bucket!f:secrets.yml!k:password";
+
+    private SecretManager secretManager;
+
+    @BeforeEach
+    public void setUp() {
+        secretManager = mock(SecretManager.class);
+        when(secretManager.decrypt(SECRET_REFERENCE)).thenReturn("supersecret");
+    }
+
+    @Test
+    public void testPlainValuesAreNotDecrypted() {
+        SecretDecrypter decrypter = new SecretDecrypter(secretManager, new EAPConfigurationProperties.SecretCache());
+
+        assertEquals("plain", decrypter.decrypt("plain"));
+        assertEquals("encryptedFile:not-a-string-secret", decrypter.decrypt("encryptedFile:not-a-string-secret"));
+
+        verify(secretManager, times(0)).decrypt(anyString());
+        assertEquals(0, decrypter.getHitCount() + decrypter.getMissCount());
+    }
+
+    @Test
+    public void testSecretsAreCached() {
+        SecretDecrypter decrypter = new SecretDecrypter(secretManager, new EAPConfigurationProperties.SecretCache());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("supersecret", decrypter.decrypt(SECRET_REFERENCE));
+        }
+
+        verify(secretManager, times(1)).decrypt(SECRET_REFERENCE);
+        assertEquals(2, decrypter.getHitCount());
+        assertEquals(1, decrypter.getMissCount());
+    }
+
+    @Test
+    public void testCacheCanBeDisabled() {
+        EAPConfigurationProperties.SecretCache config = new EAPConfigurationProperties.SecretCache();
+        config.setTtlMs(0);
+        SecretDecrypter decrypter = new SecretDecrypter(secretManager, config);
+
+        decrypter.decrypt(SECRET_REFERENCE);
+        decrypter.decrypt(SECRET_REFERENCE);
+
+        verify(secretManager, times(2)).decrypt(SECRET_REFERENCE);
+    }
+}
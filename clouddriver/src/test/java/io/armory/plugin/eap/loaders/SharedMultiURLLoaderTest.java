@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.netflix.spinnaker.clouddriver.kubernetes.config.KubernetesAccountProperties;
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
+import com.netflix.spinnaker.kork.secrets.SecretManager;
+import io.armory.plugin.eap.EAPConfigurationProperties;
+import io.armory.plugin.eap.EAPException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SharedMultiURLLoaderTest {
+
+    private static final Set<Class<? extends CredentialsDefinition>> TYPES =
+            Set.of(KubernetesAccountProperties.ManagedAccount.class);
+
+    @TempDir
+    Path dir;
+
+    private SecretManager secretManager;
+    private volatile CountDownLatch slowUntil = new CountDownLatch(0);
+
+    @BeforeEach
+    public void setUp() {
+        secretManager = mock(SecretManager.class);
+        when(secretManager.decrypt(anyString())).thenAnswer(
+                (Answer<String>) invocation -> invocation.getArgument(0, String.class));
+    }
+
+    @Test
+    public void testFirstUrlWinsOnDuplicateNames() throws IOException {
+        Path first = copyResource("/provider.yml", dir.resolve("first.yml"));
+        Path second = copyResource("/list.yml", dir.resolve("second.yml"));
+        Files.writeString(second, Files.readString(second).replace("kube-2", "kube-3"));
+
+        List<KubernetesAccountProperties.ManagedAccount> actual = load(newLoader(first, second));
+
+        assertEquals(List.of("kube-1", "kube-2", "kube-3"), names(actual));
+    }
+
+    @Test
+    public void testKeepLastLoadOfFailingUrl() throws IOException {
+        Path first = copyResource("/provider.yml", dir.resolve("first.yml"));
+        Path second = copyResource("/list.yml", dir.resolve("second.yml"));
+        Files.writeString(second, Files.readString(second).replace("kube-", "other-"));
+        SharedMultiURLLoader loader = newLoader(first, second);
+        assertEquals(4, load(loader).size());
+
+        Files.delete(second);
+        Files.writeString(first, Files.readString(first).replace("kube-2", "kube-3"));
+
+        assertEquals(List.of("kube-1", "kube-3", "other-1", "other-2"), names(load(loader)));
+    }
+
+    @Test
+    public void testFailWhenNoUrlCanBeLoaded() throws IOException {
+        SharedMultiURLLoader loader = newLoader(dir.resolve("missing.yml"), dir.resolve("other.yml"));
+
+        assertThrows(EAPException.class, () -> load(loader));
+    }
+
+    @Test
+    public void testServeLastLoadOfSlowUrl() throws Exception {
+        Path first = copyResource("/provider.yml", dir.resolve("first.yml"));
+        Path second = copyResource("/list.yml", dir.resolve("second.yml"));
+        Files.writeString(second, Files.readString(second).replace("kube-", "other-"));
+        SharedMultiURLLoader loader = newLoader(List.of(new SharedURLLoader(first.toUri().toURL(),
+                EAPConfigurationProperties.FileFormat.YAML, CredentialsParser.forSecretManager(secretManager),
+                null, TYPES, 0), new SharedURLLoader(second.toUri().toURL(),
+                EAPConfigurationProperties.FileFormat.YAML, CredentialsParser.forSecretManager(secretManager),
+                null, TYPES, 0) {
+            @Override
+            protected InputStream getInputStream() throws IOException {
+                try {
+                    slowUntil.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getInputStream();
+            }
+        }), 300);
+        assertEquals(4, load(loader).size());
+
+        slowUntil = new CountDownLatch(1);
+        Files.writeString(first, Files.readString(first).replace("kube-2", "kube-3"));
+        Files.writeString(second, Files.readString(second).replace("other-2", "other-3"));
+        long start = System.nanoTime();
+        List<String> actual = names(load(loader));
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertEquals(List.of("kube-1", "kube-3", "other-1", "other-2"), actual);
+
+        slowUntil.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!names(load(loader)).contains("other-3")) {
+            assertTrue(System.currentTimeMillis() < deadline, "Late result of the slow URL not picked up");
+            Thread.sleep(50);
+        }
+    }
+
+    private SharedMultiURLLoader newLoader(Path... files) throws IOException {
+        HttpTransport transport = new HttpTransport(new EAPConfigurationProperties.Http());
+        List<SharedURLLoader> endpoints = new ArrayList<>();
+        for (Path file : files) {
+            endpoints.add(new SharedURLLoader(file.toUri().toURL(), EAPConfigurationProperties.FileFormat.YAML,
+                    CredentialsParser.forSecretManager(secretManager), transport, TYPES, 0));
+        }
+        return newLoader(endpoints, 10000);
+    }
+
+    private static SharedMultiURLLoader newLoader(List<SharedURLLoader> endpoints, long loadTimeoutMs) {
+        return new SharedMultiURLLoader(endpoints, TYPES, 2, loadTimeoutMs, 0);
+    }
+
+    private static List<KubernetesAccountProperties.ManagedAccount> load(SharedMultiURLLoader loader) {
+        return loader.getCredentialsDefinitions(KubernetesAccountProperties.ManagedAccount.class);
+    }
+
+    private static List<String> names(List<KubernetesAccountProperties.ManagedAccount> accounts) {
+        return accounts.stream().map(KubernetesAccountProperties.ManagedAccount::getName).collect(Collectors.toList());
+    }
+
+    private Path copyResource(String resource, Path target) throws IOException {
+        try (InputStream is = SharedMultiURLLoaderTest.class.getResourceAsStream(resource)) {
+            Files.copy(is, target);
+        }
+        return target;
+    }
+}
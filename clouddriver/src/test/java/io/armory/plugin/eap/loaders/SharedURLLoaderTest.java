@@ -0,0 +1,346 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.netflix.spinnaker.clouddriver.kubernetes.config.KubernetesAccountProperties;
+import com.netflix.spinnaker.kork.secrets.SecretManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.armory.plugin.eap.EAPConfigurationProperties;
+import io.armory.plugin.eap.EAPException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SharedURLLoaderTest {
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private SecretManager secretManager;
+    private SharedURLLoader loader;
+    private final List<String> conditionalHeaders = new ArrayList<>();
+    private volatile byte[] content;
+    private volatile String etag;
+    private volatile String lastModified;
+    private volatile boolean gzip;
+    private volatile long delayMs;
+    private volatile long stallMs;                   // pause in the middle of the body
+    private final AtomicInteger mirrorRequests = new AtomicInteger();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/accounts.yml", this::handle);
+        server.createContext("/mirror.yml", this::handleMirror);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+
+        secretManager = mock(SecretManager.class);
+        when(secretManager.decrypt(anyString())).thenAnswer(
+                (Answer<String>) invocation -> invocation.getArgument(0, String.class));
+        loader = newLoader(new EAPConfigurationProperties.Http());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testReuseResultWhenETagMatches() throws IOException {
+        content = resource("/provider.yml");
+        etag = "\"v1\"";
+
+        List<KubernetesAccountProperties.ManagedAccount> first = load();
+        List<KubernetesAccountProperties.ManagedAccount> second = load();
+
+        assertEquals(2, second.size());
+        assertSame(first.get(0), second.get(0), "Not modified content should not be parsed again");
+        assertEquals("\"v1\"", conditionalHeaders.get(1));
+
+        content = resource("/list.yml");
+        etag = "\"v2\"";
+        List<KubernetesAccountProperties.ManagedAccount> third = load();
+
+        assertEquals(2, third.size());
+        assertNotSame(first.get(0), third.get(0), "Modified content should be parsed again");
+    }
+
+    @Test
+    public void testReuseResultWhenNotModifiedSince() throws IOException {
+        content = resource("/provider.yml");
+        lastModified = "Wed, 21 Oct 2020 07:28:00 GMT";
+
+        List<KubernetesAccountProperties.ManagedAccount> first = load();
+        List<KubernetesAccountProperties.ManagedAccount> second = load();
+
+        assertSame(first.get(0), second.get(0), "Not modified content should not be parsed again");
+        assertEquals(lastModified, conditionalHeaders.get(1));
+    }
+
+    @Test
+    public void testDecompressGzipContent() throws IOException {
+        content = resource("/provider.yml");
+        gzip = true;
+
+        assertEquals(2, load().size());
+    }
+
+    @Test
+    public void testSlowServerTimesOut() throws IOException {
+        content = resource("/provider.yml");
+        delayMs = 2000;
+        EAPConfigurationProperties.Http http = new EAPConfigurationProperties.Http();
+        http.setReadTimeoutMs(200);
+        loader = newLoader(http);
+
+        long start = System.currentTimeMillis();
+        EAPException e = assertThrows(EAPException.class, this::load);
+
+        assertTrue(e.getCause() instanceof HttpTimeoutException, "Unexpected cause " + e.getCause());
+        assertTrue(System.currentTimeMillis() - start < delayMs, "Request should not wait for the server");
+    }
+
+    @Test
+    public void testStalledBodyTimesOut() throws IOException {
+        content = resource("/provider.yml");
+        stallMs = 5000;
+        EAPConfigurationProperties.Http http = new EAPConfigurationProperties.Http();
+        http.setTotalTimeoutMs(500);
+        loader = newLoader(http);
+
+        long start = System.currentTimeMillis();
+        assertThrows(EAPException.class, this::load);
+
+        assertTrue(System.currentTimeMillis() - start < stallMs, "Reading the body should not wait for the server");
+    }
+
+    @Test
+    public void testRejectLargeResponse() throws IOException {
+        content = resource("/provider.yml");
+        loader = new SharedURLLoader(url("/accounts.yml"), EAPConfigurationProperties.FileFormat.YAML,
+                CredentialsParser.forSecretManager(secretManager),
+                new HttpTransport(new EAPConfigurationProperties.Http(), 64),
+                Set.of(KubernetesAccountProperties.ManagedAccount.class), 0);
+
+        EAPException e = assertThrows(EAPException.class, this::load);
+
+        assertTrue(e.getCause().getMessage().contains("limit of 64"), "Unexpected cause " + e.getCause());
+    }
+
+    @Test
+    public void testServeLastGoodWhenLoadFails() throws Exception {
+        content = resource("/provider.yml");
+        List<KubernetesAccountProperties.ManagedAccount> first = load();
+
+        content = "kube: [".getBytes();
+        List<KubernetesAccountProperties.ManagedAccount> second = load();
+        Thread.sleep(10);
+
+        assertSame(first.get(0), second.get(0), "Accounts of the last good load should be served");
+        assertTrue(loader.getStaleMs() > 0, "Accounts served after a failure should be reported as stale");
+
+        content = resource("/list.yml");
+        load();
+
+        assertEquals(0, loader.getStaleMs());
+    }
+
+    @Test
+    public void testHedgeToMirrorWhenSlow() throws IOException {
+        content = resource("/provider.yml");
+        delayMs = 2000;
+        EAPConfigurationProperties.Http http = new EAPConfigurationProperties.Http();
+        http.setHedgeDelayMs(100);
+        loader = newLoader(http, "/accounts.yml", "/mirror.yml");
+
+        long start = System.currentTimeMillis();
+        List<KubernetesAccountProperties.ManagedAccount> actual = load();
+
+        assertEquals(2, actual.size());
+        assertEquals(1, mirrorRequests.get());
+        assertTrue(System.currentTimeMillis() - start < delayMs, "Mirror answer should not wait for the slow URL");
+    }
+
+    @Test
+    public void testFailoverToMirror() throws IOException {
+        loader = newLoader(new EAPConfigurationProperties.Http(), "/missing.yml", "/mirror.yml");
+
+        assertEquals(2, load().size());
+        assertEquals(1, mirrorRequests.get());
+    }
+
+    @Test
+    public void testApplyIncrementalUpdates() throws IOException {
+        try (DeltaAccountsServer deltaServer = new DeltaAccountsServer(2)) {
+            deltaServer.publish(List.of(account("kube-1", "a"), account("kube-2", "a"), account("kube-3", "a")));
+            loader = newJsonLoader(deltaServer.url());
+            List<KubernetesAccountProperties.ManagedAccount> first = load();
+
+            deltaServer.publish(List.of(account("kube-1", "a"), account("kube-2", "b"), account("kube-4", "a")));
+            List<KubernetesAccountProperties.ManagedAccount> second = load();
+
+            assertEquals(List.of(false, true), deltaServer.getDeltaResponses());
+            assertEquals(List.of("kube-1", "kube-2", "kube-4"), names(second));
+            assertSame(first.get(0), second.get(0), "Unchanged accounts should be kept as is");
+            assertEquals(List.of("b"), second.get(1).getNamespaces());
+        }
+    }
+
+    @Test
+    public void testFullDocumentWhenVersionIsTooOld() throws IOException {
+        try (DeltaAccountsServer deltaServer = new DeltaAccountsServer(1)) {
+            deltaServer.publish(List.of(account("kube-1", "a")));
+            loader = newJsonLoader(deltaServer.url());
+            load();
+
+            deltaServer.publish(List.of(account("kube-2", "a")));
+            deltaServer.publish(List.of(account("kube-3", "a")));
+
+            assertEquals(List.of("kube-3"), names(load()));
+            assertEquals(List.of(false, false), deltaServer.getDeltaResponses());
+        }
+    }
+
+    private SharedURLLoader newJsonLoader(URL url) {
+        return new SharedURLLoader(url, EAPConfigurationProperties.FileFormat.JSON,
+                CredentialsParser.forSecretManager(secretManager), new HttpTransport(new EAPConfigurationProperties.Http()),
+                Set.of(KubernetesAccountProperties.ManagedAccount.class), 0);
+    }
+
+    private static Map<String, Object> account(String name, String namespace) {
+        return Map.of("name", name, "namespaces", List.of(namespace));
+    }
+
+    private static List<String> names(List<KubernetesAccountProperties.ManagedAccount> accounts) {
+        return accounts.stream().map(KubernetesAccountProperties.ManagedAccount::getName).collect(Collectors.toList());
+    }
+
+    private SharedURLLoader newLoader(EAPConfigurationProperties.Http http) throws IOException {
+        return newLoader(http, "/accounts.yml");
+    }
+
+    private SharedURLLoader newLoader(EAPConfigurationProperties.Http http, String path, String... mirrorPaths)
+            throws IOException {
+        List<URL> mirrors = new ArrayList<>();
+        for (String mirrorPath : mirrorPaths) {
+            mirrors.add(url(mirrorPath));
+        }
+        return new SharedURLLoader(url(path), mirrors, EAPConfigurationProperties.FileFormat.YAML,
+                CredentialsParser.forSecretManager(secretManager), new HttpTransport(http),
+                Set.of(KubernetesAccountProperties.ManagedAccount.class), 0);
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + server.getAddress().getPort() + path);
+    }
+
+    private List<KubernetesAccountProperties.ManagedAccount> load() {
+        return loader.getCredentialsDefinitions(KubernetesAccountProperties.ManagedAccount.class);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        if (delayMs > 0) {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        conditionalHeaders.add(ifNoneMatch != null ? ifNoneMatch : ifModifiedSince);
+        if ((ifNoneMatch != null && ifNoneMatch.equals(etag))
+                || (ifNoneMatch == null && ifModifiedSince != null && ifModifiedSince.equals(lastModified))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        if (etag != null) {
+            exchange.getResponseHeaders().add("ETag", etag);
+        }
+        if (lastModified != null) {
+            exchange.getResponseHeaders().add("Last-Modified", lastModified);
+        }
+        byte[] body = content;
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream os = new GZIPOutputStream(compressed)) {
+                os.write(content);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            if (stallMs > 0) {
+                os.write(body, 0, body.length / 2);
+                os.flush();
+                try {
+                    Thread.sleep(stallMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                os.write(body, body.length / 2, body.length - body.length / 2);
+            } else {
+                os.write(body);
+            }
+        }
+    }
+
+    private void handleMirror(HttpExchange exchange) throws IOException {
+        mirrorRequests.incrementAndGet();
+        byte[] body = resource("/list.yml");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static byte[] resource(String name) throws IOException {
+        try (InputStream is = SharedURLLoaderTest.class.getResourceAsStream(name)) {
+            return is.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.loaders;
+
+import com.netflix.spinnaker.clouddriver.kubernetes.config.KubernetesAccountProperties;
+import com.netflix.spinnaker.credentials.definition.CredentialsDefinition;
+import com.netflix.spinnaker.kork.secrets.SecretManager;
+import io.armory.plugin.eap.EAPConfigurationProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SnapshotCredentialsLoaderTest {
+
+    @TempDir
+    Path dir;
+
+    private Path accountsDir;
+    private Path snapshotFile;
+    private SecretManager secretManager;
+
+    @BeforeEach
+    public void setUp() {
+        accountsDir = dir.resolve("accounts");
+        snapshotFile = dir.resolve("snapshot").resolve("accounts.snapshot");
+        secretManager = mock(SecretManager.class);
+        when(secretManager.decrypt(anyString())).thenAnswer(
+                (Answer<String>) invocation -> "decrypted-" + invocation.getArgument(0, String.class));
+    }
+
+    @Test
+    public void testServeSnapshotUntilSourceIsReady() throws Exception {
+        writeAccount("kube-1");
+        try (SnapshotCredentialsLoader loader = newLoader("origin")) {
+            assertEquals("decrypted-encrypted:kube-1", load(loader).get(0).getContext());
+        }
+        String snapshot = new String(Files.readAllBytes(snapshotFile), StandardCharsets.ISO_8859_1);
+        assertTrue(snapshot.contains("encrypted:kube-1"), "Secrets should be kept as references");
+        assertFalse(snapshot.contains("decrypted-"), "Decrypted secrets should not be written");
+
+        deleteAccounts();
+        try (SnapshotCredentialsLoader loader = newLoader("origin")) {
+            List<KubernetesAccountProperties.ManagedAccount> served = load(loader);
+            assertEquals("kube-1", served.get(0).getName());
+            assertEquals("decrypted-encrypted:kube-1", served.get(0).getContext());
+
+            writeAccount("kube-2");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!"kube-2".equals(load(loader).get(0).getName())) {
+                assertTrue(System.currentTimeMillis() < deadline, "Source accounts should replace the snapshot");
+                Thread.sleep(10);
+            }
+        }
+
+        deleteAccounts();
+        try (SnapshotCredentialsLoader loader = newLoader("origin")) {
+            assertEquals("kube-2", load(loader).get(0).getName());
+        }
+    }
+
+    @Test
+    public void testWriteLiteralEqualToSecretAsIs() throws IOException {
+        Files.createDirectories(accountsDir);
+        Files.writeString(accountsDir.resolve("kube-account.yml"),
+                "name: kube-1\ncontext: encrypted:kube-1\nnamespaces: [decrypted-encrypted:kube-1]\n");
+        try (SnapshotCredentialsLoader loader = newLoader("origin")) {
+            assertEquals(1, load(loader).size());
+        }
+
+        String snapshot = new String(Files.readAllBytes(snapshotFile), StandardCharsets.ISO_8859_1);
+        assertTrue(snapshot.contains("decrypted-encrypted:kube-1"),
+                "A literal equal to a secret value should not be written as the secret reference");
+
+        deleteAccounts();
+        try (SnapshotCredentialsLoader loader = newLoader("origin")) {
+            KubernetesAccountProperties.ManagedAccount served = load(loader).get(0);
+            assertEquals("decrypted-encrypted:kube-1", served.getContext());
+            assertEquals(List.of("decrypted-encrypted:kube-1"), served.getNamespaces());
+        }
+    }
+
+    @Test
+    public void testOnlyRewriteChangedAccounts() throws IOException {
+        writeAccount("kube-1");
+        try (SnapshotCredentialsLoader loader = newLoader("origin")) {
+            assertEquals("kube-1", load(loader).get(0).getName());
+            FileTime written = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+            Files.setLastModifiedTime(snapshotFile, written);
+
+            assertEquals("kube-1", load(loader).get(0).getName());
+            assertEquals(written, Files.getLastModifiedTime(snapshotFile), "Unchanged accounts should not be written");
+
+            writeAccount("kube-2");
+            assertEquals("kube-2", load(loader).get(0).getName());
+            assertNotEquals(written, Files.getLastModifiedTime(snapshotFile), "Changed accounts should be written");
+        }
+    }
+
+    @Test
+    public void testIgnoreSnapshotOfOtherSource() throws IOException {
+        writeAccount("kube-1");
+        try (SnapshotCredentialsLoader loader = newLoader("origin")) {
+            assertEquals(1, load(loader).size());
+        }
+
+        deleteAccounts();
+        try (SnapshotCredentialsLoader loader = newLoader("other")) {
+            assertTrue(load(loader).isEmpty());
+        }
+    }
+
+    private SnapshotCredentialsLoader newLoader(String origin) {
+        CredentialsParser parser = CredentialsParser.forSecretManager(secretManager);
+        Set<Class<? extends CredentialsDefinition>> types = Set.of(KubernetesAccountProperties.ManagedAccount.class);
+        SharedDirectoryLoader source = new SharedDirectoryLoader(accountsDir, parser,
+                Map.of(KubernetesAccountProperties.ManagedAccount.class, Set.of("kube")),
+                new EAPConfigurationProperties.DirScan(), 0);
+        return new SnapshotCredentialsLoader(source, snapshotFile, origin, parser, types, 0);
+    }
+
+    private static List<KubernetesAccountProperties.ManagedAccount> load(SharedCredentialsLoader loader) {
+        return loader.getCredentialsDefinitions(KubernetesAccountProperties.ManagedAccount.class);
+    }
+
+    private void writeAccount(String name) throws IOException {
+        Files.createDirectories(accountsDir);
+        Files.writeString(accountsDir.resolve("kube-account.yml"),
+                "name: " + name + "\ncontext: encrypted:" + name + "\n");
+    }
+
+    private void deleteAccounts() throws IOException {
+        Files.delete(accountsDir.resolve("kube-account.yml"));
+        Files.delete(accountsDir);
+    }
+}
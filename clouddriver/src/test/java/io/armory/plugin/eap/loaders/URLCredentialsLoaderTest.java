@@ -16,6 +16,12 @@
 
 package io.armory.plugin.eap.loaders;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.netflix.spinnaker.clouddriver.cloudfoundry.config.CloudFoundryConfigurationProperties;
 import com.netflix.spinnaker.clouddriver.docker.registry.config.DockerRegistryConfigurationProperties;
 import com.netflix.spinnaker.clouddriver.kubernetes.config.KubernetesAccountProperties;
@@ -25,12 +31,17 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class URLCredentialsLoaderTest {
@@ -78,6 +89,88 @@ class URLCredentialsLoaderTest {
         assertEquals(2, actual.size());
     }
 
+    @Test
+    public void testLoadJsonProviderFromMixedFile() {
+        URLCredentialsLoader<KubernetesAccountProperties.ManagedAccount> loader = new URLCredentialsLoader<>(
+                null,
+                EAPConfigurationProperties.FileFormat.JSON,
+                KubernetesAccountProperties.ManagedAccount.class,
+                secretManager) {
+            @Override
+            protected InputStream getInputStream() {
+                return URLCredentialsLoaderTest.class.getResourceAsStream("/clouddriver-mixed.json");
+            }
+        };
+
+        List<KubernetesAccountProperties.ManagedAccount> actual = loader.getCredentialsDefinitions();
+        assertEquals(2, actual.size());
+        assertEquals("kube-1", actual.get(0).getName());
+        assertEquals(List.of("spinnaker"), actual.get(1).getNamespaces());
+    }
+
+    @Test
+    public void testLoadNdjsonSkippingMalformedLines() {
+        URLCredentialsLoader<KubernetesAccountProperties.ManagedAccount> loader = new URLCredentialsLoader<>(
+                null,
+                EAPConfigurationProperties.FileFormat.NDJSON,
+                KubernetesAccountProperties.ManagedAccount.class,
+                secretManager) {
+            @Override
+            protected InputStream getInputStream() {
+                return URLCredentialsLoaderTest.class.getResourceAsStream("/list.ndjson");
+            }
+        };
+
+        List<KubernetesAccountProperties.ManagedAccount> actual = loader.getCredentialsDefinitions();
+        assertEquals(2, actual.size());
+        assertEquals("kube-1", actual.get(0).getName());
+        assertEquals("kube-3", actual.get(1).getName());
+    }
+
+    @Test
+    public void testLoadSmileListFile() throws IOException {
+        List<KubernetesAccountProperties.ManagedAccount> actual =
+                loadBinary(EAPConfigurationProperties.FileFormat.SMILE, new SmileFactory());
+
+        assertEquals(2, actual.size());
+        assertEquals(System.getenv("HOME"), actual.get(0).getName());
+        verify(secretManager).decrypt("encrypted:secrets!k:context");
+    }
+
+    @Test
+    public void testLoadCborListFile() throws IOException {
+        List<KubernetesAccountProperties.ManagedAccount> actual =
+                loadBinary(EAPConfigurationProperties.FileFormat.CBOR, new CBORFactory());
+
+        assertEquals(2, actual.size());
+        assertEquals(System.getenv("HOME"), actual.get(0).getName());
+        verify(secretManager).decrypt("encrypted:secrets!k:context");
+    }
+
+    /**
+     * Loads the accounts of list.json converted to a binary format, with an env var reference and a secret.
+     */
+    private List<KubernetesAccountProperties.ManagedAccount> loadBinary(EAPConfigurationProperties.FileFormat format,
+                                                                        JsonFactory factory) throws IOException {
+        ArrayNode accounts = (ArrayNode) new ObjectMapper().readTree(
+                URLCredentialsLoaderTest.class.getResourceAsStream("/list.json"));
+        ((ObjectNode) accounts.get(0)).put("name", "${HOME}");
+        ((ObjectNode) accounts.get(0)).put("context", "encrypted:secrets!k:context");
+        byte[] content = new ObjectMapper(factory).writeValueAsBytes(accounts);
+
+        URLCredentialsLoader<KubernetesAccountProperties.ManagedAccount> loader = new URLCredentialsLoader<>(
+                null,
+                format,
+                KubernetesAccountProperties.ManagedAccount.class,
+                secretManager) {
+            @Override
+            protected InputStream getInputStream() {
+                return new ByteArrayInputStream(content);
+            }
+        };
+        return loader.getCredentialsDefinitions();
+    }
+
     @Test
     public void testLoadYamlListFile() {
         URLCredentialsLoader<KubernetesAccountProperties.ManagedAccount> loader = new URLCredentialsLoader<>(
@@ -95,6 +188,51 @@ class URLCredentialsLoaderTest {
         assertEquals(2, actual.size());
     }
 
+    @Test
+    public void testLoadYamlAnchorsAndMergeKeys() {
+        URLCredentialsLoader<KubernetesAccountProperties.ManagedAccount> loader = new URLCredentialsLoader<>(
+                null,
+                EAPConfigurationProperties.FileFormat.YAML,
+                KubernetesAccountProperties.ManagedAccount.class,
+                secretManager) {
+            @Override
+            protected InputStream getInputStream() {
+                return URLCredentialsLoaderTest.class.getResourceAsStream("/anchors.yml");
+            }
+        };
+
+        List<KubernetesAccountProperties.ManagedAccount> actual = loader.getCredentialsDefinitions();
+        assertEquals(3, actual.size());
+        for (int i = 0; i < actual.size(); i++) {
+            assertEquals("kube-" + (i + 1), actual.get(i).getName());
+            assertEquals(2, actual.get(i).getCacheThreads());
+            assertEquals(List.of("default", "spinnaker"), actual.get(i).getNamespaces());
+        }
+    }
+
+    @Test
+    public void testLoadMultiDocumentYamlFile() {
+        URLCredentialsLoader<KubernetesAccountProperties.ManagedAccount> loader = new URLCredentialsLoader<>(
+                null,
+                EAPConfigurationProperties.FileFormat.YAML,
+                KubernetesAccountProperties.ManagedAccount.class,
+                secretManager) {
+            @Override
+            protected InputStream getInputStream() {
+                return URLCredentialsLoaderTest.class.getResourceAsStream("/multi-document.yml");
+            }
+        };
+
+        List<KubernetesAccountProperties.ManagedAccount> actual = loader.getCredentialsDefinitions();
+        assertEquals(5, actual.size());
+        for (int i = 0; i < actual.size(); i++) {
+            assertEquals("kube-" + (i + 1), actual.get(i).getName());
+        }
+        assertEquals(List.of("team-a"), actual.get(1).getNamespaces());
+        assertEquals(List.of("team-c"), actual.get(3).getNamespaces());
+        assertEquals(List.of("team-d"), actual.get(4).getNamespaces());
+    }
+
     @Test
     public void testLoadJsonListFile() {
         URLCredentialsLoader<KubernetesAccountProperties.ManagedAccount> loader = new URLCredentialsLoader<>(
@@ -355,4 +493,35 @@ class URLCredentialsLoaderTest {
         assertEquals("library/nginx", dockerAccounts.get(1).getRepositories().get(0));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testSharedLoaderFetchesOnceForAllProviders() {
+        AtomicInteger fetches = new AtomicInteger();
+        SharedURLLoader shared = new SharedURLLoader(
+                null,
+                EAPConfigurationProperties.FileFormat.YAML,
+                CredentialsParser.forSecretManager(secretManager),
+                new HttpTransport(new EAPConfigurationProperties.Http()),
+                Set.of(KubernetesAccountProperties.ManagedAccount.class,
+                        CloudFoundryConfigurationProperties.ManagedAccount.class,
+                        DockerRegistryConfigurationProperties.ManagedAccount.class),
+                60000) {
+            @Override
+            protected InputStream getInputStream() {
+                fetches.incrementAndGet();
+                return URLCredentialsLoaderTest.class.getResourceAsStream("/clouddriver-mixed.yml");
+            }
+        };
+
+        List<KubernetesAccountProperties.ManagedAccount> kube =
+                new URLCredentialsLoader<>(shared, KubernetesAccountProperties.ManagedAccount.class).getCredentialsDefinitions();
+        List<CloudFoundryConfigurationProperties.ManagedAccount> cf =
+                new URLCredentialsLoader<>(shared, CloudFoundryConfigurationProperties.ManagedAccount.class).getCredentialsDefinitions();
+        List<DockerRegistryConfigurationProperties.ManagedAccount> docker =
+                new URLCredentialsLoader<>(shared, DockerRegistryConfigurationProperties.ManagedAccount.class).getCredentialsDefinitions();
+
+        assertEquals(1, fetches.get());
+        assertTrue(kube.size() == 1 && "kube".equals(kube.get(0).getName()));
+        assertTrue(cf.size() == 1 && "cf".equals(cf.get(0).getName()));
+        assertTrue(docker.size() == 1 && "dockerhub".equals(docker.get(0).getName()));
+    }
+}
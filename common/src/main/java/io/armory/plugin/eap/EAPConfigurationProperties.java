@@ -11,6 +11,9 @@ import javax.annotation.PostConstruct;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
 
 @ConfigurationProperties("armory.external-accounts")
 @Data
@@ -23,13 +26,100 @@ public class EAPConfigurationProperties {
     private URL url;
     @JsonProperty("url-content-format")
     private FileFormat urlContentFormat;
+    @JsonProperty("url-mirrors")
+    private List<URL> urlMirrors = new ArrayList<>();   // Other http(s) URLs serving the same content as "url"
+    private List<UrlSource> urls = new ArrayList<>();   // More URLs, merged after "url" in the order they are listed
+    @JsonProperty("url-fetch-threads")
+    private int urlFetchThreads = 4;                 // How many of the URLs are fetched at the same time
+    @JsonProperty("url-load-timeout-ms")
+    private long urlLoadTimeoutMs = 15000;           // URLs not answering within this time contribute their last result
+    @JsonProperty("dir-scan")
+    private DirScan dirScan = new DirScan();
+    @JsonProperty("load-reuse-window-ms")
+    private long loadReuseWindowMs = 5000;           // Loads finished within this window are shared by all providers
+    @JsonProperty("snapshot-file")
+    private String snapshotFile;                     // Where the last loaded accounts are kept to be served right away on restart
+    @JsonProperty("secret-cache")
+    private SecretCache secretCache = new SecretCache();
+    @JsonProperty("parser-limits")
+    private ParserLimits parserLimits = new ParserLimits();
+    private Http http = new Http();
 
     public enum FileFormat {
-        YAML("yaml", "yml"), JSON("json");
+        YAML("yaml", "yml"), JSON("json"),
+        NDJSON("ndjson", "jsonl"),  // one JSON account per line
+        SMILE("smile", "sml"),      // binary encodings of the JSON layouts
+        CBOR("cbor");
         String[] extensions;
         FileFormat(String... extensions) {
             this.extensions = extensions;
         }
+
+        public String[] getExtensions() {
+            return extensions.clone();
+        }
+    }
+
+    public enum ScanMode {
+        FULL,   // walk the whole directory on every load
+        WATCH   // only look at paths reported by file system events, falling back to FULL when they are lost
+    }
+
+    @Data
+    public static class DirScan {
+        private ScanMode mode = ScanMode.FULL;
+        private List<String> include = new ArrayList<>();   // Globs relative to "dir", empty includes all files
+        private List<String> exclude = new ArrayList<>();   // Globs relative to "dir", matching directories are never visited
+        @JsonProperty("max-depth")
+        private int maxDepth = Integer.MAX_VALUE;
+        @JsonProperty("skip-git")
+        private boolean skipGit = true;                      // Don't descend into .git directories
+        @JsonProperty("parse-threads")
+        private int parseThreads = 1;                        // Threads parsing changed files, 1 parses them in the loading thread
+    }
+
+    @Data
+    public static class SecretCache {
+        @JsonProperty("ttl-ms")
+        private long ttlMs = 300000;                         // How long a decrypted secret is reused, 0 disables caching
+        @JsonProperty("max-size")
+        private long maxSize = 10000;                        // Maximum number of decrypted secrets kept
+    }
+
+    @Data
+    public static class ParserLimits {
+        @JsonProperty("max-aliases")
+        private int maxAliases = 50;                         // YAML alias references per document
+        @JsonProperty("max-alias-tokens")
+        private long maxAliasTokens = 100000;                // Tokens produced by expanding YAML aliases per document
+        @JsonProperty("max-depth")
+        private int maxDepth = 100;                          // Nesting of maps and lists
+        @JsonProperty("max-file-bytes")
+        private long maxFileBytes = 10 * 1024 * 1024;        // Size of a file or URL document, once decompressed
+        @JsonProperty("max-source-bytes")
+        private long maxSourceBytes = 100 * 1024 * 1024;     // Size of all the account files of "dir"
+    }
+
+    @Data
+    public static class UrlSource {
+        private URL url;
+        @JsonProperty("content-format")
+        private FileFormat contentFormat;
+        private List<URL> mirrors = new ArrayList<>();      // Other http(s) URLs serving the same content
+    }
+
+    @Data
+    public static class Http {
+        @JsonProperty("connect-timeout-ms")
+        private long connectTimeoutMs = 5000;
+        @JsonProperty("read-timeout-ms")
+        private long readTimeoutMs = 30000;                  // Maximum wait for the response headers
+        @JsonProperty("total-timeout-ms")
+        private long totalTimeoutMs = 60000;                 // Maximum duration of a whole request, body included
+        @JsonProperty("hedge-percentile")
+        private double hedgePercentile = 95;                 // Latency percentile of a URL after which a mirror is also asked
+        @JsonProperty("hedge-delay-ms")
+        private long hedgeDelayMs = 2000;                    // Wait before asking a mirror until enough latencies are known
     }
 
     @Data
@@ -55,12 +145,27 @@ public class EAPConfigurationProperties {
 
     @PostConstruct
     public void init() {
-        if (StringUtils.isEmpty(url) && StringUtils.isEmpty(dir)) {
-            throw new EAPException("Either \"dir\" or \"url\" should be supplied");
+        if (StringUtils.isEmpty(url) && urls.isEmpty() && StringUtils.isEmpty(dir)) {
+            throw new EAPException("Either \"dir\", \"url\" or \"urls\" should be supplied");
         }
         if (url != null && urlContentFormat == null) {
             throw new EAPException("If \"url\" is defined, \"urlContentFormat\" must be defined as well");
         }
+        if (urls.stream().anyMatch(u -> u.getUrl() == null || u.getContentFormat() == null)) {
+            throw new EAPException("Every entry of \"urls\" must define \"url\" and \"content-format\"");
+        }
+        if (!urlMirrors.isEmpty() && url == null) {
+            throw new EAPException("\"url-mirrors\" can't be used without \"url\"");
+        }
+        Stream.concat(urlMirrors.stream(), urls.stream().flatMap(u -> u.getMirrors().stream()))
+                .filter(m -> !"http".equalsIgnoreCase(m.getProtocol()) && !"https".equalsIgnoreCase(m.getProtocol()))
+                .findFirst()
+                .ifPresent(m -> {
+                    throw new EAPException("Mirror " + m + " must be an http or https URL");
+                });
+        if (!urls.isEmpty() && !StringUtils.isEmpty(dir)) {
+            throw new EAPException("\"dir\" and \"urls\" can't be used together");
+        }
     }
 
     public Path getDir() {
@@ -69,4 +174,11 @@ public class EAPConfigurationProperties {
         }
         return Paths.get(dir);
     }
+
+    public Path getSnapshotFile() {
+        if (StringUtils.isEmpty(snapshotFile)) {
+            return null;
+        }
+        return Paths.get(snapshotFile);
+    }
 }
@@ -0,0 +1,102 @@
+package io.armory.plugin.eap;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Revisions of the accounts directory published by whatever updates it, such as the embedded git poller publishing
+ * the commits it checks out, so that the accounts loader knows what changed without scanning the directory.
+ * <p>
+ * Each revision lists the paths that changed since the previous one, relative to the accounts directory. Only the
+ * last revisions are kept, a loader that is further behind scans the directory instead.
+ * <p>
+ * When each revision is checked out into its own directory and published by swapping a symbolic link, readers
+ * acquire the directory the link points to for the time they read it, and the updater only deletes the directories
+ * no reader holds anymore.
+ */
+public class RevisionTracker {
+
+    private static final int MAX_REVISIONS = 32;
+
+    private final Deque<Revision> revisions = new ArrayDeque<>();
+    private final Map<Path, Integer> readers = new HashMap<>();
+
+    private static class Revision {
+        private final String id;
+        private final Set<Path> changedPaths;
+
+        Revision(String id, Set<Path> changedPaths) {
+            this.id = id;
+            this.changedPaths = changedPaths;
+        }
+    }
+
+    /**
+     * Publishes a new revision of the directory.
+     *
+     * @param changedPaths paths changed since the previous revision, or null when they aren't known
+     */
+    public synchronized void publish(String id, Collection<Path> changedPaths) {
+        if (changedPaths == null) {
+            // earlier revisions can't be compared with this one anymore
+            revisions.clear();
+        }
+        revisions.addLast(new Revision(id, changedPaths != null ? Set.copyOf(changedPaths) : Set.of()));
+        if (revisions.size() > MAX_REVISIONS) {
+            revisions.removeFirst();
+        }
+    }
+
+    /**
+     * The latest published revision, or null if none was published yet.
+     */
+    public synchronized String getCurrent() {
+        return revisions.isEmpty() ? null : revisions.getLast().id;
+    }
+
+    /**
+     * Paths changed between the given revision and the latest one, or null when they aren't known.
+     */
+    public synchronized Set<Path> getChangesSince(String id) {
+        Set<Path> changed = new HashSet<>();
+        Iterator<Revision> it = revisions.descendingIterator();
+        while (it.hasNext()) {
+            Revision revision = it.next();
+            if (revision.id.equals(id)) {
+                return changed;
+            }
+            changed.addAll(revision.changedPaths);
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the directory, following symbolic links, and holds the directory it resolves to until it's released.
+     * A link swapped in the meantime doesn't change what the caller reads.
+     */
+    public synchronized Path acquire(Path dir) throws IOException {
+        Path resolved = dir.toRealPath();
+        readers.merge(resolved, 1, Integer::sum);
+        return resolved;
+    }
+
+    public synchronized void release(Path resolved) {
+        readers.computeIfPresent(resolved, (path, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Whether a reader holds the directory, given as a real path. A directory no link points to anymore can't be
+     * acquired again, so it can be deleted once this returns false.
+     */
+    public synchronized boolean isHeld(Path resolved) {
+        return readers.containsKey(resolved);
+    }
+}
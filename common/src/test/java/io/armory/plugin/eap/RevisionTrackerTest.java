@@ -0,0 +1,84 @@
+package io.armory.plugin.eap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RevisionTrackerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testChangesSinceRevision() {
+        RevisionTracker revisions = new RevisionTracker();
+        assertNull(revisions.getCurrent());
+        revisions.publish("1", null);
+        revisions.publish("2", List.of(Path.of("a.yml")));
+        revisions.publish("3", List.of(Path.of("b.yml"), Path.of("nested/c.yml")));
+
+        assertEquals("3", revisions.getCurrent());
+        assertEquals(Set.of(Path.of("a.yml"), Path.of("b.yml"), Path.of("nested/c.yml")), revisions.getChangesSince("1"));
+        assertEquals(Set.of(Path.of("b.yml"), Path.of("nested/c.yml")), revisions.getChangesSince("2"));
+        assertEquals(Set.of(), revisions.getChangesSince("3"));
+        assertNull(revisions.getChangesSince("unknown"), "Changes since an unknown revision should not be known");
+    }
+
+    @Test
+    public void testUnknownChangesForgetEarlierRevisions() {
+        RevisionTracker revisions = new RevisionTracker();
+        revisions.publish("1", null);
+        revisions.publish("2", List.of(Path.of("a.yml")));
+        revisions.publish("3", null);
+
+        assertNull(revisions.getChangesSince("1"));
+        assertNull(revisions.getChangesSince("2"));
+        assertEquals(Set.of(), revisions.getChangesSince("3"));
+    }
+
+    @Test
+    public void testOnlyKeepLastRevisions() {
+        RevisionTracker revisions = new RevisionTracker();
+        revisions.publish("0", null);
+        for (int i = 1; i <= 32; i++) {
+            revisions.publish(String.valueOf(i), List.of(Path.of(i + ".yml")));
+        }
+
+        assertNull(revisions.getChangesSince("0"), "Revisions over the maximum should be dropped");
+        assertEquals(31, revisions.getChangesSince("1").size());
+        assertEquals(Set.of(Path.of("32.yml")), revisions.getChangesSince("31"));
+    }
+
+    @Test
+    public void testHoldAcquiredDirectoryUntilReleased() throws IOException {
+        Path first = Files.createDirectories(dir.resolve("versions").resolve("1"));
+        Path second = Files.createDirectories(dir.resolve("versions").resolve("2"));
+        Path link = Files.createSymbolicLink(dir.resolve("current"), first);
+        RevisionTracker revisions = new RevisionTracker();
+
+        Path acquired = revisions.acquire(link);
+        Path again = revisions.acquire(link);
+        assertEquals(first.toRealPath(), acquired);
+        assertEquals(acquired, again);
+
+        Files.delete(link);
+        Files.createSymbolicLink(link, second);
+        assertTrue(revisions.isHeld(first.toRealPath()), "Directory should be held after the link was swapped");
+        assertFalse(revisions.isHeld(second.toRealPath()));
+
+        revisions.release(acquired);
+        assertTrue(revisions.isHeld(first.toRealPath()), "Directory should be held until every reader released it");
+        revisions.release(again);
+        assertFalse(revisions.isHeld(first.toRealPath()));
+
+        revisions.release(acquired);
+        assertFalse(revisions.isHeld(first.toRealPath()), "Extra releases should be ignored");
+    }
+}
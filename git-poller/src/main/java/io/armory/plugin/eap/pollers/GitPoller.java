@@ -18,27 +18,76 @@ package io.armory.plugin.eap.pollers;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.armory.plugin.eap.EAPException;
+import io.armory.plugin.eap.RevisionTracker;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
 import org.springframework.util.StringUtils;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Keeps a clone of the repository in the {@code repo} directory of the target directory, and checks out each commit
+ * it pulls into its own directory of {@code versions}. A commit is published by atomically swapping the
+ * {@code current} symbolic link to its checkout once it's complete, so readers never see a checkout being written,
+ * and checkouts are deleted once the link has moved on and no reader holds them anymore.
+ */
 @Slf4j
 public class GitPoller implements Runnable {
 
+    static final String REPO_DIR = "repo";
+    private static final String VERSIONS_DIR = "versions";
+    private static final String CURRENT_LINK = "current";
+    private static final String STAGING_SUFFIX = ".tmp";
+    private static final String TRASH_SUFFIX = ".trash";
+
     private final GitPollerConfigurationProperties configProperties;
     private final Path targetDir;
+    private final Path versionsDir;
     private final GitStrategy strategy;
+    private final RevisionTracker revisions;
     private boolean initialized = false;
 
     public interface GitStrategy {
         void cloneRepo() throws EAPException;
         void pullChanges() throws EAPException;
+
+        /**
+         * Writes the files of a commit into an empty directory, leaving the clone untouched.
+         */
+        void checkout(String commit, Path dir) throws EAPException;
+
+        /**
+         * Whether the target directory already holds a readable clone of the configured repository and branch.
+         */
+        boolean isCloned();
+
+        /**
+         * Commit the configured branch or tag points to in the remote repository, or null if it isn't listed.
+         * Only the refs are asked for, no object is fetched.
+         */
+        String getRemoteHead() throws EAPException;
+
+        /**
+         * Commit checked out in the clone.
+         */
+        String getLocalHead() throws EAPException;
+
+        /**
+         * Paths of the files added, changed or deleted between two commits, relative to the root of the repository.
+         */
+        Set<Path> getChangedPaths(String fromCommit, String toCommit) throws EAPException;
     }
 
     public enum AuthType {
@@ -48,16 +97,41 @@ public class GitPoller implements Runnable {
         NONE
     }
 
-    public GitPoller(GitPollerConfigurationProperties configProperties, Path targetDir) {
+    /**
+     * @param revisions where the commits checked out are published, along with the paths they changed, and which
+     *                  checkouts are still being read
+     */
+    public GitPoller(GitPollerConfigurationProperties configProperties, Path targetDir, RevisionTracker revisions) {
+        this(configProperties, targetDir, revisions, detectStrategy(configProperties, targetDir.resolve(REPO_DIR)));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat(GitPoller.class.getSimpleName() + "-%d")
+                        .build());
+        executor.scheduleAtFixedRate(this, 0,
+                configProperties.getSyncIntervalSecs(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * A poller that only runs when {@link #run()} is called, with a strategy working in the {@link #REPO_DIR}
+     * directory of the target directory.
+     */
+    GitPoller(GitPollerConfigurationProperties configProperties, Path targetDir, RevisionTracker revisions,
+              GitStrategy strategy) {
         this.configProperties = configProperties;
         this.targetDir = targetDir;
+        this.versionsDir = targetDir.resolve(VERSIONS_DIR);
+        this.revisions = revisions;
+        this.strategy = strategy;
+    }
+
+    private static GitStrategy detectStrategy(GitPollerConfigurationProperties configProperties, Path repoDir) {
         AuthType authType;
-        if (!StringUtils.isEmpty(this.configProperties.getUsername()) &&
-                !StringUtils.isEmpty(this.configProperties.getPassword())) {
+        if (!StringUtils.isEmpty(configProperties.getUsername()) &&
+                !StringUtils.isEmpty(configProperties.getPassword())) {
             authType = AuthType.HTTP;
-        } else if (!StringUtils.isEmpty(this.configProperties.getToken())) {
+        } else if (!StringUtils.isEmpty(configProperties.getToken())) {
             authType = AuthType.TOKEN;
-        } else if (!StringUtils.isEmpty(this.configProperties.getSshPrivateKeyFilePath())) {
+        } else if (!StringUtils.isEmpty(configProperties.getSshPrivateKeyFilePath())) {
             authType = AuthType.SSH;
         } else {
             authType = AuthType.NONE;
@@ -67,38 +141,136 @@ public class GitPoller implements Runnable {
                 "git --version", new File(System.getProperty("java.io.tmpdir")));
         if (shellResult.getExitValue() == 0) {
             log.info("Git binary detected on path, using it");
-            this.strategy = new ShellGitStrategy(configProperties, targetDir, authType);
-        } else {
-            log.info("Git binary NOT detected on path, using jgit");
-            this.strategy = new JgitStrategy(configProperties, targetDir, authType);
+            return new ShellGitStrategy(configProperties, repoDir, authType);
         }
+        log.info("Git binary NOT detected on path, using jgit");
+        return new JgitStrategy(configProperties, repoDir, authType);
+    }
 
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
-                new ThreadFactoryBuilder()
-                        .setNameFormat(GitPoller.class.getSimpleName() + "-%d")
-                        .build());
-        executor.scheduleAtFixedRate(this, 0,
-                configProperties.getSyncIntervalSecs(), TimeUnit.SECONDS);
+    /**
+     * The symbolic link to the checkout of the latest commit, where accounts are read from.
+     */
+    public static Path checkoutLink(Path targetDir) {
+        return targetDir.resolve(CURRENT_LINK);
     }
 
     @Override
     public void run() {
         try {
             if (!initialized) {
-                if (targetDir.toFile().exists()) {
-                    FileUtils.deleteDirectory(targetDir.toFile());
+                if (strategy.isCloned()) {
+                    log.info("Reusing clone of git repository {} in {}",
+                            this.configProperties.getRepo(),
+                            this.targetDir.toAbsolutePath());
+                } else {
+                    cloneRepo();
                 }
-                FileUtils.forceMkdir(targetDir.toFile());
-                log.info("Cloning git repository {} into {}",
-                        this.configProperties.getRepo(),
-                        this.targetDir.toAbsolutePath());
-                strategy.cloneRepo();
+                // what the directory held before is unknown, it is scanned again
+                publish(strategy.getLocalHead(), null);
                 initialized = true;
             }
+            // checkouts still read when the link was swapped are deleted once released
+            reclaimCheckouts();
+            String localHead = strategy.getLocalHead();
+            String remoteHead = strategy.getRemoteHead();
+            if (remoteHead != null && remoteHead.equals(localHead)) {
+                log.debug("Repo {} is up to date at {}", configProperties.getRepo(), remoteHead);
+                return;
+            }
             log.debug("Pulling latest changes from repo {}", configProperties.getRepo());
             strategy.pullChanges();
+            String head = strategy.getLocalHead();
+            if (!head.equals(localHead)) {
+                publish(head, changedPaths(localHead, head));
+            }
         } catch (Throwable t) {
             log.error("Exception cloning or refreshing git repo " + configProperties.getRepo(), t);
         }
     }
+
+    private Set<Path> changedPaths(String fromCommit, String toCommit) {
+        try {
+            Set<Path> changed = strategy.getChangedPaths(fromCommit, toCommit);
+            log.debug("Commit {} of repo {} changed {} files", toCommit, configProperties.getRepo(), changed.size());
+            return changed;
+        } catch (EAPException e) {
+            log.warn("Unable to list the files changed by commit {}, accounts will be fully scanned", toCommit, e);
+            return null;
+        }
+    }
+
+    /**
+     * Checks the commit out unless it already was, then points the link to it. The link is swapped before the
+     * revision is published, so that a reader seeing the revision also sees its files.
+     */
+    private void publish(String commit, Set<Path> changedPaths) throws IOException {
+        Path checkout = versionsDir.resolve(commit);
+        if (!Files.isDirectory(checkout)) {
+            Path staging = versionsDir.resolve(commit + STAGING_SUFFIX);
+            // left over by a checkout that was interrupted
+            FileUtils.deleteDirectory(staging.toFile());
+            FileUtils.forceMkdir(staging.toFile());
+            strategy.checkout(commit, staging);
+            Files.move(staging, checkout, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Path link = checkoutLink(targetDir);
+        Path stagingLink = targetDir.resolve(CURRENT_LINK + STAGING_SUFFIX);
+        Files.deleteIfExists(stagingLink);
+        // relative, so that the link still resolves when the volume is mounted elsewhere
+        Files.createSymbolicLink(stagingLink, Paths.get(VERSIONS_DIR, commit));
+        Files.move(stagingLink, link, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log.info("Published commit {} of repo {} in {}", commit, configProperties.getRepo(), link.toAbsolutePath());
+        revisions.publish(commit, changedPaths);
+        reclaimCheckouts();
+    }
+
+    /**
+     * Deletes the checkouts the link doesn't point to and no reader holds. A checkout is renamed before it's
+     * deleted, so that a deletion interrupted by a crash never leaves a partial checkout under its commit, where
+     * {@link #publish} would reuse it.
+     */
+    private void reclaimCheckouts() throws IOException {
+        Path current = checkoutLink(targetDir).toRealPath();
+        List<Path> checkouts;
+        try (Stream<Path> entries = Files.list(versionsDir)) {
+            checkouts = entries.collect(Collectors.toList());
+        }
+        for (Path checkout : checkouts) {
+            if (Files.notExists(checkout)) {
+                continue; // a leftover trash directory already deleted along with its checkout
+            }
+            Path resolved = checkout.toRealPath();
+            if (resolved.equals(current) || revisions.isHeld(resolved)) {
+                continue;
+            }
+            log.debug("Deleting checkout {}", checkout);
+            Path trash = checkout;
+            if (!checkout.getFileName().toString().endsWith(TRASH_SUFFIX)) {
+                trash = versionsDir.resolve(checkout.getFileName() + TRASH_SUFFIX);
+                FileUtils.deleteDirectory(trash.toFile());
+                Files.move(checkout, trash, StandardCopyOption.ATOMIC_MOVE);
+            }
+            FileUtils.deleteDirectory(trash.toFile());
+        }
+    }
+
+    private void cloneRepo() throws IOException {
+        Path repoDir = targetDir.resolve(REPO_DIR);
+        // published checkouts are kept as they may still be read, they are reclaimed once the new clone is published
+        File[] entries = targetDir.toFile().listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                boolean published = (entry.getName().equals(VERSIONS_DIR) && entry.isDirectory()) ||
+                        (entry.getName().equals(CURRENT_LINK) && Files.isSymbolicLink(entry.toPath()));
+                if (!published) {
+                    FileUtils.forceDelete(entry);
+                }
+            }
+        }
+        FileUtils.forceMkdir(repoDir.toFile());
+        log.info("Cloning git repository {} into {}",
+                this.configProperties.getRepo(),
+                repoDir.toAbsolutePath());
+        strategy.cloneRepo();
+    }
 }
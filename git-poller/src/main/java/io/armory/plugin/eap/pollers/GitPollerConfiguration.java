@@ -17,6 +17,7 @@
 package io.armory.plugin.eap.pollers;
 
 import io.armory.plugin.eap.EAPConfigurationProperties;
+import io.armory.plugin.eap.RevisionTracker;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -28,7 +29,8 @@ public class GitPollerConfiguration {
 
     @ConditionalOnProperty("armory.external-accounts.git-poller.enabled")
     @Bean
-    public GitPoller gitPoller(GitPollerConfigurationProperties gitConfig, EAPConfigurationProperties globalConfig) {
-        return new GitPoller(gitConfig, globalConfig.getDir().toAbsolutePath());
+    public GitPoller gitPoller(GitPollerConfigurationProperties gitConfig, EAPConfigurationProperties globalConfig,
+                               RevisionTracker revisionTracker) {
+        return new GitPoller(gitConfig, globalConfig.getDir().toAbsolutePath(), revisionTracker);
     }
 }
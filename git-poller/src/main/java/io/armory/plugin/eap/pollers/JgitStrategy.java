@@ -25,12 +25,31 @@ import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.GitCommand;
 import org.eclipse.jgit.api.TransportCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.*;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.util.FS;
 import org.springframework.util.StringUtils;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 @Slf4j
 public class JgitStrategy implements GitPoller.GitStrategy {
@@ -59,6 +78,127 @@ public class JgitStrategy implements GitPoller.GitStrategy {
         }
     }
 
+    @Override
+    public boolean isCloned() {
+        if (!targetDir.resolve(Constants.DOT_GIT).toFile().isDirectory()) {
+            return false;
+        }
+        try (Git localRepository = Git.open(targetDir.toFile())) {
+            Repository repository = localRepository.getRepository();
+            String remote = repository.getConfig().getString("remote", Constants.DEFAULT_REMOTE_NAME, "url");
+            if (!configProperties.getRepo().equals(remote) || repository.resolve("HEAD^{tree}") == null) {
+                return false;
+            }
+            String head = repository.getFullBranch();
+            String branch = configProperties.getBranch();
+            if (head.equals(branch) || head.equals(Constants.R_HEADS + branch)) {
+                return true;
+            }
+            // a tag is checked out as a detached HEAD
+            String tag = branch.startsWith(Constants.R_TAGS) ? branch : Constants.R_TAGS + branch;
+            return !head.startsWith(Constants.R_REFS) && repository.exactRef(tag) != null;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to use the existing clone in {}", targetDir, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void checkout(String commit, Path dir) throws EAPException {
+        try (Git localRepository = Git.open(targetDir.toFile());
+             ObjectReader reader = localRepository.getRepository().newObjectReader();
+             RevWalk walk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(walk.parseCommit(ObjectId.fromString(commit)).getTree());
+            treeWalk.setRecursive(true);
+            while (treeWalk.next()) {
+                Path file = dir.resolve(treeWalk.getPathString());
+                Files.createDirectories(file.getParent());
+                FileMode mode = treeWalk.getFileMode(0);
+                if (mode == FileMode.SYMLINK) {
+                    String target = new String(reader.open(treeWalk.getObjectId(0)).getBytes(), UTF_8);
+                    Files.createSymbolicLink(file, Paths.get(target));
+                } else if (mode == FileMode.REGULAR_FILE || mode == FileMode.EXECUTABLE_FILE) {
+                    try (OutputStream os = Files.newOutputStream(file)) {
+                        reader.open(treeWalk.getObjectId(0)).copyTo(os);
+                    }
+                }
+                // submodules aren't cloned, they are left out as in the clone
+            }
+        } catch (IOException e) {
+            throw new EAPException(
+                    "Failed to check out commit " + commit + " of repository " + configProperties.getRepo() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String getRemoteHead() throws EAPException {
+        try (Git localRepository = Git.open(targetDir.toFile())) {
+            Map<String, Ref> refs = addAuthentication(localRepository.lsRemote()
+                    .setRemote(Constants.DEFAULT_REMOTE_NAME))
+                    .callAsMap();
+            String branch = configProperties.getBranch();
+            String tag = branch.startsWith(Constants.R_TAGS) ? branch : Constants.R_TAGS + branch;
+            for (String name : List.of(branch, Constants.R_HEADS + branch, tag)) {
+                Ref ref = refs.get(name);
+                if (ref != null) {
+                    // annotated tags point to the tag object, the commit is the peeled id
+                    ObjectId id = ref.getPeeledObjectId() != null ? ref.getPeeledObjectId() : ref.getObjectId();
+                    return id.name();
+                }
+            }
+            return null;
+        } catch (IOException | GitAPIException e) {
+            throw new EAPException(
+                    "Failed to do \"git ls-remote\" of repository " + configProperties.getRepo() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String getLocalHead() throws EAPException {
+        try (Git localRepository = Git.open(targetDir.toFile())) {
+            ObjectId head = localRepository.getRepository().resolve(Constants.HEAD);
+            if (head == null) {
+                throw new EAPException("Clone of repository " + configProperties.getRepo() + " has no HEAD");
+            }
+            return head.name();
+        } catch (IOException e) {
+            throw new EAPException(
+                    "Failed to read HEAD of the clone of " + configProperties.getRepo() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Set<Path> getChangedPaths(String fromCommit, String toCommit) throws EAPException {
+        try (Git localRepository = Git.open(targetDir.toFile());
+             ObjectReader reader = localRepository.getRepository().newObjectReader();
+             RevWalk walk = new RevWalk(reader)) {
+            CanonicalTreeParser fromTree = new CanonicalTreeParser();
+            fromTree.reset(reader, walk.parseCommit(ObjectId.fromString(fromCommit)).getTree());
+            CanonicalTreeParser toTree = new CanonicalTreeParser();
+            toTree.reset(reader, walk.parseCommit(ObjectId.fromString(toCommit)).getTree());
+            Set<Path> changed = new HashSet<>();
+            // only the paths are needed, the patch would read and compare the content of every changed blob
+            List<DiffEntry> entries = localRepository.diff()
+                    .setOldTree(fromTree)
+                    .setNewTree(toTree)
+                    .setShowNameAndStatusOnly(true)
+                    .call();
+            for (DiffEntry entry : entries) {
+                if (!DiffEntry.DEV_NULL.equals(entry.getOldPath())) {
+                    changed.add(Paths.get(entry.getOldPath()));
+                }
+                if (!DiffEntry.DEV_NULL.equals(entry.getNewPath())) {
+                    changed.add(Paths.get(entry.getNewPath()));
+                }
+            }
+            return changed;
+        } catch (IOException | GitAPIException e) {
+            throw new EAPException(
+                    "Failed to list the files changed in repository " + configProperties.getRepo() + ": " + e.getMessage(), e);
+        }
+    }
+
     @Override
     public void pullChanges() throws EAPException {
         try (Git localRepository = Git.open(targetDir.toFile())) {
@@ -25,17 +25,23 @@ import org.springframework.util.StringUtils;
 import java.io.*;
 import java.net.*;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class ShellGitStrategy implements GitPoller.GitStrategy {
 
     private static final int CMD_TIMEOUT_SEC = 30;
+    private static final Pattern LS_REMOTE_LINE = Pattern.compile("^([0-9a-f]{40,64})\\t(\\S+)$", Pattern.MULTILINE);
 
     private final GitPollerConfigurationProperties configProperties;
     private final Path targetDir;
@@ -68,6 +74,41 @@ public class ShellGitStrategy implements GitPoller.GitStrategy {
         }
     }
 
+    @Override
+    public boolean isCloned() {
+        // the repository is cloned into a subdirectory of the target directory
+        File[] dirs = targetDir.toFile().listFiles(File::isDirectory);
+        if (dirs == null || dirs.length != 1) {
+            return false;
+        }
+        File repoDir = dirs[0];
+        // the remote url of the clone embeds the credentials it was cloned with, which may have been rotated since
+        ShellResult remote = execShellCommand("git config --get remote.origin.url", repoDir);
+        String cloneUrl = buildCloneUrl();
+        if (remote.exitValue != 0 || !withoutCredentials(remote.output.trim()).equals(withoutCredentials(cloneUrl))) {
+            return false;
+        }
+        if (!remote.output.trim().equals(cloneUrl) &&
+                execShellCommand(String.format("git remote set-url origin %s", cloneUrl), repoDir).exitValue != 0) {
+            return false;
+        }
+        // a clone interrupted before its HEAD commit was fetched is cloned again
+        ShellResult head = execShellCommand("git rev-parse --verify --quiet \"HEAD^{commit}\" > /dev/null" +
+                " && (git symbolic-ref -q HEAD || echo HEAD)", repoDir);
+        if (head.exitValue != 0) {
+            return false;
+        }
+        String ref = head.output.trim();
+        String branch = configProperties.getBranch();
+        if (ref.equals(branch) || ref.equals("refs/heads/" + branch)) {
+            return true;
+        }
+        // a tag is checked out as a detached HEAD
+        String tag = branch.startsWith("refs/tags/") ? branch : "refs/tags/" + branch;
+        return ref.equals("HEAD") &&
+                execShellCommand(String.format("git rev-parse --verify --quiet %s", tag), repoDir).exitValue == 0;
+    }
+
     @Override
     public void pullChanges() throws EAPException {
         String prefix = buildAuthCmdPrefix();
@@ -80,6 +121,80 @@ public class ShellGitStrategy implements GitPoller.GitStrategy {
         }
     }
 
+    @Override
+    public void checkout(String commit, Path dir) throws EAPException {
+        // files are written through a separate index, so that the index and work tree of the clone are left untouched
+        ShellResult shellResult = execShellCommand(String.format("cd */ && " +
+                        "export GIT_INDEX_FILE=\"$(git rev-parse --absolute-git-dir)/checkout-index\" && " +
+                        "git read-tree %s && git checkout-index --all --force --prefix=\"%s/\"; " +
+                        "status=$?; rm -f \"$GIT_INDEX_FILE\"; exit $status",
+                commit, dir.toAbsolutePath()));
+        if (shellResult.exitValue != 0) {
+            throw new EAPException("Failed to check out commit " + commit + " of repository " + configProperties.getRepo()
+                    + ": " + shellResult.output);
+        }
+    }
+
+    @Override
+    public String getRemoteHead() throws EAPException {
+        String branch = configProperties.getBranch();
+        String tag = branch.startsWith("refs/tags/") ? branch : "refs/tags/" + branch;
+        // the commit of an annotated tag is only listed when its peeled ref is asked for
+        String refs = (branch.startsWith("refs/") ? branch : "refs/heads/" + branch + " " + tag)
+                + String.format(" \"%s^{}\"", tag);
+        String prefix = buildAuthCmdPrefix();
+        ShellResult shellResult = execShellCommand(String.format("%s cd */ && git ls-remote origin %s %s",
+                prefix, refs, (!prefix.equals("") ? "'" : "")));
+        if (shellResult.exitValue != 0) {
+            throw new EAPException("Failed to do \"git ls-remote\" of repository " + configProperties.getRepo() + ": "
+                    + shellResult.output);
+        }
+        // the output also holds the messages of ssh-agent, only the lines listing refs are read
+        Map<String, String> shaByRef = new HashMap<>();
+        Matcher matcher = LS_REMOTE_LINE.matcher(shellResult.output);
+        while (matcher.find()) {
+            shaByRef.put(matcher.group(2), matcher.group(1));
+        }
+        for (String ref : List.of(tag + "^{}", branch, "refs/heads/" + branch, tag)) {
+            if (shaByRef.containsKey(ref)) {
+                return shaByRef.get(ref);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getLocalHead() throws EAPException {
+        ShellResult shellResult = execShellCommand("cd */ && git rev-parse HEAD");
+        if (shellResult.exitValue != 0) {
+            throw new EAPException("Failed to read HEAD of the clone of " + configProperties.getRepo() + ": "
+                    + shellResult.output);
+        }
+        return shellResult.output.trim();
+    }
+
+    @Override
+    public Set<Path> getChangedPaths(String fromCommit, String toCommit) throws EAPException {
+        File[] dirs = targetDir.toFile().listFiles(File::isDirectory);
+        if (dirs == null || dirs.length != 1) {
+            throw new EAPException("Clone of repository " + configProperties.getRepo() + " not found in " + targetDir);
+        }
+        // renames are listed as a deleted and an added path, both of them are changed for the accounts loader
+        ShellResult shellResult = execShellCommand(
+                String.format("git diff --name-only --no-renames -z %s %s", fromCommit, toCommit), dirs[0]);
+        if (shellResult.exitValue != 0) {
+            throw new EAPException("Failed to do \"git diff\" of repository " + configProperties.getRepo() + ": "
+                    + shellResult.output);
+        }
+        Set<Path> changed = new HashSet<>();
+        for (String path : shellResult.output.split("\0")) {
+            if (!path.isEmpty()) {
+                changed.add(Paths.get(path));
+            }
+        }
+        return changed;
+    }
+
     private ShellResult execShellCommand(String command) {
         return execShellCommand(command, targetDir.toFile(), new HashMap<>(), null);
     }
@@ -211,6 +326,22 @@ public class ShellGitStrategy implements GitPoller.GitStrategy {
         }
     }
 
+    /**
+     * Returns the url without the user info, or as it is when it isn't a url, like scp style ssh locations.
+     */
+    static String withoutCredentials(String url) {
+        try {
+            URI uri = new URI(url);
+            if (uri.getRawUserInfo() == null) {
+                return url;
+            }
+            return new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(), uri.getPath(), uri.getQuery(),
+                    uri.getFragment()).toString();
+        } catch (URISyntaxException e) {
+            return url;
+        }
+    }
+
     private static String encodeURIComponent(String s) {
         String result;
         result = URLEncoder.encode(s, UTF_8)
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.armory.plugin.eap.pollers;
+
+import io.armory.plugin.eap.RevisionTracker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GitPollerTest {
+
+    @TempDir
+    Path dir;
+
+    RemoteRepository remote;
+    GitPollerConfigurationProperties config;
+    Path targetDir;
+    RevisionTracker revisions;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        remote = new RemoteRepository(dir.resolve("remote"));
+        config = new GitPollerConfigurationProperties();
+        config.setRepo(remote.getUrl());
+        targetDir = dir.resolve("accounts");
+        revisions = new RevisionTracker();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        remote.close();
+    }
+
+    private GitPoller newPoller(GitPollerConfigurationProperties config, RevisionTracker revisions) {
+        return new GitPoller(config, targetDir, revisions,
+                new JgitStrategy(config, targetDir.resolve(GitPoller.REPO_DIR), GitPoller.AuthType.NONE));
+    }
+
+    private Set<String> checkouts() throws IOException {
+        try (Stream<Path> entries = Files.list(targetDir.resolve("versions"))) {
+            return entries.map(p -> p.getFileName().toString()).collect(Collectors.toSet());
+        }
+    }
+
+    @Test
+    public void testPublishCheckoutBehindLink() throws Exception {
+        String commit = remote.commit(Map.of("kube-1.yml", "name: kube-1\n", "nested/kube-2.yml", "name: kube-2\n"));
+        newPoller(config, revisions).run();
+
+        Path link = GitPoller.checkoutLink(targetDir);
+        assertTrue(Files.isSymbolicLink(link));
+        assertEquals(Path.of("versions", commit), Files.readSymbolicLink(link), "Link should be relative");
+        assertEquals("name: kube-1\n", Files.readString(link.resolve("kube-1.yml")));
+        assertEquals("name: kube-2\n", Files.readString(link.resolve("nested/kube-2.yml")));
+        assertEquals(commit, revisions.getCurrent());
+        assertEquals(Set.of(commit), checkouts());
+    }
+
+    @Test
+    public void testSwapLinkToNewCommit() throws Exception {
+        String first = remote.commit(Map.of("kube-1.yml", "name: kube-1\n"));
+        GitPoller poller = newPoller(config, revisions);
+        poller.run();
+        String second = remote.commit(Map.of("kube-1.yml", "name: kube-1\nnamespaces: [dev]\n",
+                "kube-2.yml", "name: kube-2\n"));
+        poller.run();
+
+        Path link = GitPoller.checkoutLink(targetDir);
+        assertEquals(Path.of("versions", second), Files.readSymbolicLink(link));
+        assertEquals("name: kube-1\nnamespaces: [dev]\n", Files.readString(link.resolve("kube-1.yml")));
+        assertEquals(second, revisions.getCurrent());
+        assertEquals(Set.of(Path.of("kube-1.yml"), Path.of("kube-2.yml")), revisions.getChangesSince(first));
+        assertEquals(Set.of(second), checkouts(), "Previous checkout should be reclaimed");
+
+        poller.run();
+        assertEquals(second, revisions.getCurrent());
+        assertEquals(Set.of(), revisions.getChangesSince(second), "Nothing should be published when up to date");
+    }
+
+    @Test
+    public void testKeepHeldCheckoutUntilReleased() throws Exception {
+        String first = remote.commit(Map.of("kube-1.yml", "name: kube-1\n"));
+        GitPoller poller = newPoller(config, revisions);
+        poller.run();
+        Path held = revisions.acquire(GitPoller.checkoutLink(targetDir));
+        String second = remote.commit(Map.of("kube-1.yml", "name: kube-1\nnamespaces: [dev]\n"));
+        poller.run();
+
+        assertEquals(second, revisions.getCurrent());
+        assertEquals(Set.of(first, second), checkouts());
+        assertEquals("name: kube-1\n", Files.readString(held.resolve("kube-1.yml")));
+
+        revisions.release(held);
+        poller.run();
+        assertEquals(Set.of(second), checkouts());
+    }
+
+    @Test
+    public void testReuseClone() throws Exception {
+        String commit = remote.commit(Map.of("kube-1.yml", "name: kube-1\n"));
+        newPoller(config, revisions).run();
+        Path marker = Files.writeString(targetDir.resolve(GitPoller.REPO_DIR).resolve("marker"), "");
+
+        RevisionTracker restarted = new RevisionTracker();
+        newPoller(config, restarted).run();
+        assertTrue(Files.exists(marker), "Clone of the same repository should be reused");
+        assertEquals(commit, restarted.getCurrent());
+
+        try (RemoteRepository other = new RemoteRepository(dir.resolve("other"))) {
+            String otherCommit = other.commit(Map.of("kube-2.yml", "name: kube-2\n"));
+            GitPollerConfigurationProperties otherConfig = new GitPollerConfigurationProperties();
+            otherConfig.setRepo(other.getUrl());
+            RevisionTracker switched = new RevisionTracker();
+            newPoller(otherConfig, switched).run();
+
+            assertFalse(Files.exists(marker), "Clone of another repository should be replaced");
+            assertEquals(otherCommit, switched.getCurrent());
+            assertTrue(Files.exists(GitPoller.checkoutLink(targetDir).resolve("kube-2.yml")));
+            assertEquals(Set.of(otherCommit), checkouts());
+        }
+    }
+
+    @Test
+    public void testReclaimLeftoversOfInterruptedRun() throws Exception {
+        String commit = remote.commit(Map.of("kube-1.yml", "name: kube-1\n"));
+        newPoller(config, revisions).run();
+        Path versions = targetDir.resolve("versions");
+        Files.createDirectories(versions.resolve("0123.trash").resolve("nested"));
+        Files.writeString(versions.resolve("0123.trash").resolve("nested").resolve("kube-2.yml"), "");
+        Files.createDirectories(versions.resolve("4567.tmp"));
+        Files.writeString(versions.resolve("4567.tmp").resolve("kube-3.yml"), "");
+        Files.createDirectories(versions.resolve(commit + ".trash"));
+
+        newPoller(config, new RevisionTracker()).run();
+        assertEquals(Set.of(commit), checkouts());
+        assertEquals("name: kube-1\n", Files.readString(GitPoller.checkoutLink(targetDir).resolve("kube-1.yml")));
+    }
+}
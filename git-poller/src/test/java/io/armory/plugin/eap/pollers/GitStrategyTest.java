@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.armory.plugin.eap.pollers;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs each strategy against a bare repository read through a file:// url.
+ */
+abstract class GitStrategyTest {
+
+    @TempDir
+    Path dir;
+
+    RemoteRepository remote;
+    GitPollerConfigurationProperties config;
+    Path repoDir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        remote = new RemoteRepository(dir.resolve("remote"));
+        config = new GitPollerConfigurationProperties();
+        config.setRepo(remote.getUrl());
+        repoDir = Files.createDirectories(dir.resolve("accounts").resolve(GitPoller.REPO_DIR));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        remote.close();
+    }
+
+    abstract GitPoller.GitStrategy newStrategy(GitPollerConfigurationProperties config, Path repoDir);
+
+    /**
+     * The git directory of the clone made in the repository directory.
+     */
+    abstract Path gitDir(Path repoDir) throws IOException;
+
+    @Test
+    public void testCloneAndFollowRemoteHead() throws Exception {
+        String first = remote.commit(Map.of("kube-1.yml", "name: kube-1\n"));
+        GitPoller.GitStrategy strategy = newStrategy(config, repoDir);
+        assertFalse(strategy.isCloned());
+
+        strategy.cloneRepo();
+        assertTrue(strategy.isCloned());
+        assertEquals(first, strategy.getLocalHead());
+        assertEquals(first, strategy.getRemoteHead());
+
+        String second = remote.commit(Map.of("kube-2.yml", "name: kube-2\n"));
+        assertEquals(second, strategy.getRemoteHead());
+        assertEquals(first, strategy.getLocalHead(), "Reading the remote head should not fetch it");
+
+        strategy.pullChanges();
+        assertEquals(second, strategy.getLocalHead());
+        assertTrue(newStrategy(config, repoDir).isCloned(), "Clone should be reused by a new strategy");
+    }
+
+    @Test
+    public void testRejectCloneOfOtherRepositoryOrBranch() throws Exception {
+        remote.commit(Map.of("kube-1.yml", "name: kube-1\n"));
+        newStrategy(config, repoDir).cloneRepo();
+
+        try (RemoteRepository other = new RemoteRepository(dir.resolve("other"))) {
+            other.commit(Map.of("kube-1.yml", "name: kube-1\n"));
+            GitPollerConfigurationProperties otherRepo = new GitPollerConfigurationProperties();
+            otherRepo.setRepo(other.getUrl());
+            assertFalse(newStrategy(otherRepo, repoDir).isCloned());
+        }
+        GitPollerConfigurationProperties otherBranch = new GitPollerConfigurationProperties();
+        otherBranch.setRepo(remote.getUrl());
+        otherBranch.setBranch("release");
+        assertFalse(newStrategy(otherBranch, repoDir).isCloned());
+    }
+
+    @Test
+    public void testRejectCloneWithoutHeadCommit() throws Exception {
+        remote.commit(Map.of("kube-1.yml", "name: kube-1\n"));
+        GitPoller.GitStrategy strategy = newStrategy(config, repoDir);
+        strategy.cloneRepo();
+
+        Files.writeString(gitDir(repoDir).resolve("HEAD"), "ref: refs/heads/missing\n");
+        assertFalse(strategy.isCloned());
+    }
+
+    @Test
+    public void testFollowAnnotatedTag() throws Exception {
+        String tagged = remote.commit(Map.of("kube-1.yml", "name: kube-1\n"));
+        String tag = remote.tag("v1");
+        remote.commit(Map.of("kube-2.yml", "name: kube-2\n"));
+        assertNotEquals(tagged, tag);
+        config.setBranch("v1");
+        GitPoller.GitStrategy strategy = newStrategy(config, repoDir);
+
+        strategy.cloneRepo();
+        assertTrue(strategy.isCloned());
+        assertEquals(tagged, strategy.getLocalHead());
+        assertEquals(tagged, strategy.getRemoteHead(), "Remote head of an annotated tag should be the tagged commit");
+    }
+
+    @Test
+    public void testCheckoutCommits() throws Exception {
+        String first = remote.commit(Map.of("kube-1.yml", "name: kube-1\n", "nested/kube-2.yml", "name: kube-2\n"));
+        GitPoller.GitStrategy strategy = newStrategy(config, repoDir);
+        strategy.cloneRepo();
+        String second = remote.commit(Map.of("kube-1.yml", "name: kube-1\nnamespaces: [dev]\n"));
+        strategy.pullChanges();
+
+        Path firstDir = Files.createDirectories(dir.resolve("checkouts").resolve(first));
+        Path secondDir = Files.createDirectories(dir.resolve("checkouts").resolve(second));
+        strategy.checkout(first, firstDir);
+        strategy.checkout(second, secondDir);
+
+        assertEquals("name: kube-1\n", Files.readString(firstDir.resolve("kube-1.yml")));
+        assertEquals("name: kube-2\n", Files.readString(firstDir.resolve("nested/kube-2.yml")));
+        assertEquals("name: kube-1\nnamespaces: [dev]\n", Files.readString(secondDir.resolve("kube-1.yml")));
+        assertEquals("name: kube-2\n", Files.readString(secondDir.resolve("nested/kube-2.yml")));
+        assertFalse(Files.exists(firstDir.resolve(".git")));
+        assertEquals(second, strategy.getLocalHead(), "Checking out a commit should leave the clone untouched");
+    }
+
+    @Test
+    public void testListChangedPaths() throws Exception {
+        String first = remote.commit(Map.of(
+                "kube-1.yml", "name: kube-1\n",
+                "kube-2.yml", "name: kube-2\n",
+                "nested/kube-3.yml", "name: kube-3\n",
+                "nested/kube-4.yml", "name: kube-4\n"));
+        GitPoller.GitStrategy strategy = newStrategy(config, repoDir);
+        strategy.cloneRepo();
+        String second = remote.commit(Map.of(
+                "kube-1.yml", "name: kube-1\nnamespaces: [dev]\n",
+                "nested/kube-5.yml", "name: kube-5\n",
+                "nested/renamed.yml", "name: kube-4\n"),
+                "kube-2.yml", "nested/kube-4.yml");
+        strategy.pullChanges();
+
+        assertEquals(Set.of(
+                Path.of("kube-1.yml"),
+                Path.of("kube-2.yml"),
+                Path.of("nested/kube-5.yml"),
+                Path.of("nested/kube-4.yml"),
+                Path.of("nested/renamed.yml")),
+                strategy.getChangedPaths(first, second));
+        assertEquals(Set.of(), strategy.getChangedPaths(second, second));
+    }
+}
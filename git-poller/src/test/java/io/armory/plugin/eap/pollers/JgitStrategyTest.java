@@ -0,0 +1,35 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.armory.plugin.eap.pollers;
+
+import org.eclipse.jgit.lib.Constants;
+
+import java.nio.file.Path;
+
+class JgitStrategyTest extends GitStrategyTest {
+
+    @Override
+    GitPoller.GitStrategy newStrategy(GitPollerConfigurationProperties config, Path repoDir) {
+        return new JgitStrategy(config, repoDir, GitPoller.AuthType.NONE);
+    }
+
+    @Override
+    Path gitDir(Path repoDir) {
+        return repoDir.resolve(Constants.DOT_GIT);
+    }
+}
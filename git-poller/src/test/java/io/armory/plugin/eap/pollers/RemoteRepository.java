@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Armory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.armory.plugin.eap.pollers;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.RefSpec;
+
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * A bare repository served through a {@code file://} url, and a working copy of it used to push commits and tags.
+ */
+class RemoteRepository implements Closeable {
+
+    private static final PersonIdent AUTHOR = new PersonIdent("EAP Tests", "eap-tests@example.com");
+
+    private final Path bare;
+    private final Path workDir;
+    private final Git work;
+
+    RemoteRepository(Path dir) throws Exception {
+        this.bare = dir.resolve("remote.git");
+        this.workDir = dir.resolve("work");
+        Git.init().setBare(true).setDirectory(bare.toFile()).call().close();
+        this.work = Git.init().setDirectory(workDir.toFile()).call();
+        work.getRepository().getConfig().setString("remote", "origin", "url", getUrl());
+        work.getRepository().getConfig().save();
+    }
+
+    String getUrl() {
+        return bare.toUri().toString();
+    }
+
+    /**
+     * Writes the files, deletes the given paths and pushes the result to the master branch. Returns the commit id.
+     */
+    String commit(Map<String, String> files, String... deleted) throws Exception {
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            Path path = workDir.resolve(file.getKey());
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, file.getValue());
+            work.add().addFilepattern(file.getKey()).call();
+        }
+        for (String path : deleted) {
+            work.rm().addFilepattern(path).call();
+        }
+        RevCommit commit = work.commit()
+                .setMessage("Update accounts")
+                .setAuthor(AUTHOR)
+                .setCommitter(AUTHOR)
+                .setSign(false)
+                .call();
+        work.push().setRemote("origin").setRefSpecs(new RefSpec("HEAD:refs/heads/master")).call();
+        return commit.name();
+    }
+
+    /**
+     * Tags the last commit with an annotated tag and pushes it. Returns the id of the tag object.
+     */
+    String tag(String name) throws Exception {
+        Ref tag = work.tag().setName(name).setAnnotated(true).setMessage("Release " + name).setTagger(AUTHOR).call();
+        work.push().setRemote("origin").setPushTags().call();
+        return tag.getObjectId().name();
+    }
+
+    @Override
+    public void close() {
+        work.close();
+    }
+}